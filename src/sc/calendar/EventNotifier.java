@@ -0,0 +1,202 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import sc.calendar.dataSource.CalendarEvent;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps the notification shade showing a given set of due events, posting
+ * and cancelling only what differs from what is already shown. Each event
+ * keeps the same notification id for as long as it is shown. Past the group
+ * threshold the events are shown as one summary instead.
+ * <p>
+ * There is one per process, so what it knows is shown survives the activity
+ * being recreated.
+ */
+class EventNotifier {
+	private static final int SUMMARY_ID = 1;
+	private static final int FIRST_EVENT_ID = 2;
+
+	private static EventNotifier instance;
+
+	private final Context context;
+	private final NotificationManager manager;
+	private final int groupThreshold;
+
+	// guarded by this, the events to show, those posted individually and
+	// the ids they are posted with
+	private Map<String, CalendarEvent> wanted = Maps.newLinkedHashMap();
+	private final Map<String, CalendarEvent> posted = Maps.newHashMap();
+	private final Map<String, Integer> ids = Maps.newHashMap();
+	private int nextId = FIRST_EVENT_ID;
+	private boolean summaryShown;
+
+	// whether notifications left by an earlier process have been taken down
+	private boolean adopted;
+
+	private EventNotifier(Context context, int groupThreshold) {
+		this.context = context;
+		this.manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		this.groupThreshold = groupThreshold;
+	}
+
+	/**
+	 * @param groupThreshold most events shown individually
+	 */
+	static synchronized EventNotifier getInstance(Context context, int groupThreshold) {
+		if (instance == null) {
+			instance = new EventNotifier(context.getApplicationContext(), groupThreshold);
+		}
+		return instance;
+	}
+
+	/**
+	 * Shows exactly the given events
+	 */
+	synchronized void reconcile(Collection<CalendarEvent> events) {
+		if (!adopted) {
+			// ids from an earlier process can't be mapped back to events,
+			// so the first full reconcile starts from an empty shade
+			manager.cancelAll();
+			posted.clear();
+			ids.clear();
+			summaryShown = false;
+			this.wanted = Maps.newLinkedHashMap();
+			adopted = true;
+		}
+
+		Map<String, CalendarEvent> wanted = Maps.newLinkedHashMap();
+		for (CalendarEvent ce : events) {
+			wanted.put(ce.getId(), ce);
+		}
+		apply(wanted);
+	}
+
+	/**
+	 * Shows the given events as well as those already shown
+	 */
+	synchronized void add(Collection<CalendarEvent> events) {
+		if (events.isEmpty())
+			return;
+		Map<String, CalendarEvent> wanted = Maps.newLinkedHashMap(this.wanted);
+		for (CalendarEvent ce : events) {
+			wanted.put(ce.getId(), ce);
+		}
+		apply(wanted);
+	}
+
+	/**
+	 * Follows changes to the due events. Shown events that were removed stop
+	 * being shown, unless they were inserted again because they were edited,
+	 * in which case they are shown as they are now. Inserted events that
+	 * were not shown are left for {@link #add}.
+	 */
+	synchronized void update(Collection<CalendarEvent> removed, Collection<CalendarEvent> inserted) {
+		if (removed.isEmpty() && inserted.isEmpty())
+			return;
+		Map<String, CalendarEvent> wanted = Maps.newLinkedHashMap(this.wanted);
+		for (CalendarEvent ce : removed) {
+			wanted.remove(ce.getId());
+		}
+		for (CalendarEvent ce : inserted) {
+			if (this.wanted.containsKey(ce.getId()))
+				wanted.put(ce.getId(), ce);
+		}
+		apply(wanted);
+	}
+
+	// must hold this
+	private void apply(Map<String, CalendarEvent> wanted) {
+		boolean unchanged = wanted.equals(this.wanted);
+		this.wanted = wanted;
+		boolean grouped = wanted.size() > groupThreshold;
+
+		// take down what is no longer wanted, or everything if grouping
+		Iterator<Map.Entry<String, CalendarEvent>> it = posted.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, CalendarEvent> entry = it.next();
+			if (grouped || !wanted.containsKey(entry.getKey())) {
+				manager.cancel(ids.remove(entry.getKey()));
+				it.remove();
+			}
+		}
+
+		if (grouped) {
+			// reposted in place so its count stays current
+			if (!summaryShown || !unchanged) {
+				CalendarEvent first = wanted.values().iterator().next();
+				manager.notify(SUMMARY_ID, summary(first, wanted.size()));
+				summaryShown = true;
+			}
+			return;
+		}
+
+		if (summaryShown) {
+			manager.cancel(SUMMARY_ID);
+			summaryShown = false;
+		}
+
+		for (CalendarEvent ce : wanted.values()) {
+			CalendarEvent old = posted.get(ce.getId());
+			if (old != null && sameContent(old, ce))
+				continue;
+
+			Integer id = ids.get(ce.getId());
+			if (id == null) {
+				id = nextId++;
+				ids.put(ce.getId(), id);
+			}
+			manager.notify(id, notification(ce.getStart(), context.getText(R.string.event), ce.getSummary()));
+			posted.put(ce.getId(), ce);
+		}
+	}
+
+	private static boolean sameContent(CalendarEvent a, CalendarEvent b) {
+		if (a.getStart() != b.getStart())
+			return false;
+		return a.getSummary() == null ? b.getSummary() == null : a.getSummary().equals(b.getSummary());
+	}
+
+	private Notification summary(CalendarEvent first, int count) {
+		Notification notification = notification(first.getStart(), context.getString(R.string.events_due, count),
+				context.getString(R.string.events_due_more, first.getSummary(), count - 1));
+		notification.number = count;
+		return notification;
+	}
+
+	private Notification notification(long when, CharSequence contentTitle, CharSequence contentText) {
+		Notification notification = new Notification(R.drawable.ic_launcher, context.getText(R.string.new_event), when);
+		notification.flags |= Notification.FLAG_AUTO_CANCEL;
+
+		Intent notificationIntent = new Intent(context, SCalendarActivity.class);
+		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, notificationIntent, 0);
+
+		notification.setLatestEventInfo(context.getApplicationContext(), contentTitle, contentText, contentIntent);
+		return notification;
+	}
+}
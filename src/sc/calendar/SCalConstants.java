@@ -16,18 +16,10 @@
 
 package sc.calendar;
 
-import java.text.SimpleDateFormat;
 import java.util.logging.Level;
 
 public class SCalConstants {
 
-	// simple date format, suitable for decoding dates from google calendar
-	public static final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-	// date formatter suitable for encoding a date and time for use in google
-	// calendar query
-	public static final SimpleDateFormat rfc3339 = new SimpleDateFormat("yyyy-MM-dd'T'h:m:ss.SZ");
-
 	// How far into the past are events requested from google calendar
 	// i.e events more than 1 week old will not be checked
 	public static final int BUFFER_PERIOD_MS = 1000 * 60 * 60 * 24 * 7;
@@ -35,6 +27,14 @@ public class SCalConstants {
 	// the period with which the calender updates
 	static final int CAL_SYNC_PERIOD_MS = 30000;
 
+	// bounds the sync period is adapted within, polls run more often while
+	// events are changing or about to start and less often when idle
+	static final int MIN_CAL_SYNC_PERIOD_MS = 15000;
+	static final int MAX_CAL_SYNC_PERIOD_MS = 1000 * 60 * 15;
+
+	// most due events notified individually, more are shown as one summary
+	static final int NOTIFICATION_GROUP_THRESHOLD = 5;
+
 	// Goole api key
 	public static final String KEY = "INSERT APP KEY HERE";
 	
@@ -16,28 +16,34 @@
 
 package sc.calendar;
 
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutionException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
-import sc.calendar.dataSource.AndroidCalendar;
+import sc.calendar.dataSource.AlarmQueue;
+import sc.calendar.dataSource.CalendarDelta;
 import sc.calendar.dataSource.CalendarEvent;
+import sc.calendar.dataSource.DateCodec;
+import sc.calendar.dataSource.EventStore;
 import sc.calendar.dataSource.PollCalendar;
 import sc.calendar.dataSource.googleApi.CalendarAuthTokenResolver;
 import sc.calendar.dataSource.googleApi.CalendarConnectionData;
+import sc.calendar.dataSource.googleApi.ResponseCache;
 import sc.calendar.db.DbInterface;
+import sc.calendar.db.EventClearQueue;
 import sc.calendar.ui.CalendarEventAdapter;
+import sc.calendar.ui.EventListDiff;
 import android.app.Activity;
-import android.app.Notification;
-import android.app.NotificationManager;
+import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -54,14 +60,63 @@ public class SCalendarActivity extends Activity {
 
 	private static final int CALENDER_INTERFACE_ID = 1;
 
+	// broadcast by the alarm set for the next event to start
+	private static final String ACTION_EVENTS_DUE = "sc.calendar.EVENTS_DUE";
+
 	private DbInterface db;
+	private EventClearQueue clearQueue;
 	private CalendarEventAdapter m_adapter;
 
 	private final Handler handler = new Handler();
 
-	private TimerTask doAsynchronousTask;
+	private SyncScheduler scheduler;
+	private EventNotifier notifier;
+
+	// this activity's poll, run by the process wide scheduler
+	private final Callable<Integer> poll = new Callable<Integer>() {
+		public Integer call() throws IOException {
+			return pollCalendar();
+		}
+	};
+
+	// the uncleared events, reloaded from the db after polls that change them
+	private final EventStore store = new EventStore();
+
+	// the events yet to start, the alarm is set for the first of them
+	private final AlarmQueue alarmQueue = new AlarmQueue();
+	private PendingIntent alarmIntent;
+	private final BroadcastReceiver alarmReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			notifyDueAlarms();
+		}
+	};
+
+	// the list shows times in the local zone
+	private final BroadcastReceiver timeZoneReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			DateCodec.timeZoneChanged();
+			m_adapter.notifyDataSetChanged();
+		}
+	};
+
+	// applies each stored poll page to the alarm queue
+	private final PollCalendar.DeltaListener alarmUpdater = new PollCalendar.DeltaListener() {
+		public void onApplied(CalendarDelta page) {
+			if (alarmQueue.apply(page, System.currentTimeMillis()))
+				armAlarm();
+		}
+	};
 	private AuthTokenRenewer atr;
 
+	// token the polls use, replaced on re-auth
+	private volatile CalendarConnectionData connection;
+
+	// the due events the list was last updated to. Set by onCreate before
+	// this activity's poll can start, then only by the poll
+	private volatile List<CalendarEvent> displayed = Collections.emptyList();
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -71,21 +126,59 @@ public class SCalendarActivity extends Activity {
 		
 		setContentView(R.layout.main);
 
-		db = new DbInterface(this);
+		db = DbInterface.getInstance(this);
+		clearQueue = new EventClearQueue(db);
 		atr = new AuthTokenRenewer();
+		notifier = EventNotifier.getInstance(this, SCalConstants.NOTIFICATION_GROUP_THRESHOLD);
+		scheduler = SyncScheduler.getInstance();
 
 		//Create main list view
 		ListView lv = ((ListView) this.findViewById(R.id.android_listView));
-		m_adapter = new CalendarEventAdapter(this, R.layout.list_item, db);
+		m_adapter = new CalendarEventAdapter(this, R.layout.list_item, clearQueue);
 		lv.setAdapter(m_adapter);
 
 		// do initial display from db
-		updateList(db.getCalenders());
+		reloadStore();
+		updateList(diffDisplayed());
+
+		// alert as each upcoming event starts
+		alarmIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_EVENTS_DUE), 0);
+		registerReceiver(alarmReceiver, new IntentFilter(ACTION_EVENTS_DUE));
+		registerReceiver(timeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+		long now = System.currentTimeMillis();
+		alarmQueue.load(store.getStartingBetween(now, Long.MAX_VALUE), now);
+		armAlarm();
 
 		// try to get authtoken
 		atr.renewAuthToken();
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		// catch up on anything missed while in the background, joining the
+		// poll already running if there is one
+		scheduler.pollNow();
+	}
+
+	@Override
+	protected void onPause() {
+		// the process may be killed any time after this
+		clearQueue.flush();
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		((AlarmManager) getSystemService(Context.ALARM_SERVICE)).cancel(alarmIntent);
+		unregisterReceiver(alarmReceiver);
+		unregisterReceiver(timeZoneReceiver);
+		clearQueue.shutdown();
+		// a poll already running finishes before the next instance's starts
+		scheduler.stop(poll);
+		super.onDestroy();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 	    MenuInflater inflater = getMenuInflater();
@@ -106,39 +199,34 @@ public class SCalendarActivity extends Activity {
 	}
 	
 	private void createNotifications() {
+		notifier.reconcile(store.getDueBefore(System.currentTimeMillis()));
+	}
 
-		String ns = Context.NOTIFICATION_SERVICE;
-		NotificationManager mNotificationManager = (NotificationManager) getSystemService(ns);
-
-		mNotificationManager.cancelAll();
-		
-		int icon = R.drawable.ic_launcher;
-		CharSequence tickerText = getText(R.string.new_event);
-		long now = System.currentTimeMillis();
-
-		Context context = getApplicationContext();
-
-		Set<AndroidCalendar> cals = db.getCalenders();
-		for (AndroidCalendar cal : cals) {
-			for (CalendarEvent ce : cal.getEvents()) {
-				if (!ce.getCleared() && ce.getStart().getTime() < now) {
-
-					Notification notification = new Notification(icon, tickerText, ce.getStart().getTime());
-					notification.flags |= Notification.FLAG_AUTO_CANCEL;
-					
-					CharSequence contentTitle = getText(R.string.event);
-					CharSequence contentText = ce.getSummary();
-					Intent notificationIntent = new Intent(this, SCalendarActivity.class);
-					PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
-					
-
-					notification.setLatestEventInfo(context, contentTitle, contentText, contentIntent);
-					mNotificationManager.notify(ce.getId().hashCode(), notification);
-				}
-			}
+	/**
+	 * Sets the one alarm for when the next queued event starts, replacing any
+	 * set before
+	 */
+	private void armAlarm() {
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		// called from both the poll and GUI threads, the last set must be
+		// for the current head
+		synchronized (alarmQueue) {
+			long next = alarmQueue.nextStart();
+			if (next < 0)
+				alarmManager.cancel(alarmIntent);
+			else
+				alarmManager.set(AlarmManager.RTC_WAKEUP, next, alarmIntent);
 		}
 	}
 
+	/**
+	 * Notifies the events the alarm went off for and sets it for the next
+	 */
+	private void notifyDueAlarms() {
+		notifier.add(alarmQueue.pollDue(System.currentTimeMillis()));
+		armAlarm();
+	}
+
 	/** 
 	 * Class that can be passed and used to renew the auth token if it is rejected 
 	 * @author joliver
@@ -147,8 +235,7 @@ public class SCalendarActivity extends Activity {
 	public class AuthTokenRenewer {
 		public void renewAuthToken() {
 			// stop polling until we have a token
-			if (doAsynchronousTask != null)
-				doAsynchronousTask.cancel();
+			scheduler.stop(poll);
 
 			// ensure its done on the main thread
 			handler.post(new Runnable() {
@@ -161,52 +248,66 @@ public class SCalendarActivity extends Activity {
 	}
 
 	/**
-	 * Updates the main list in the GUI with the events from the calendars.
+	 * Loads every uncleared event from the db into the store. Can be called
+	 * outside the GUI thread.
+	 */
+	private void reloadStore() {
+		// so events cleared since the last load don't come back
+		clearQueue.flush();
+		store.replace(db.getDueEvents(Long.MAX_VALUE, 0));
+	}
+
+	/**
+	 * Reads the events that are now due and works out how the list has to
+	 * change to show them. Can be called outside the GUI thread.
+	 */
+	private EventListDiff diffDisplayed() {
+		List<CalendarEvent> due = store.getDueBefore(System.currentTimeMillis());
+		EventListDiff diff = EventListDiff.between(displayed, due);
+		displayed = due;
+		return diff;
+	}
+
+	/**
+	 * Updates the main list in the GUI with the events that are due.
 	 * This should be called from the GUI thread. 
-	 * @param calenders
+	 * @param diff
 	 */
-	private void updateList(final Set<AndroidCalendar> calenders) {
-		final long now = System.currentTimeMillis();
-		m_adapter.clear();
-		for (AndroidCalendar ac : calenders) {
-			for (CalendarEvent ce : ac.getEvents()) {
-				if (!ce.getCleared() && ce.getStart().getTime() < now) {
-					m_adapter.add(ce);
-				}
-			}
-		}
+	private void updateList(final EventListDiff diff) {
+		m_adapter.apply(diff);
 	}
 
 	/**
-	 * Creates a timer task that periodically calls the PollCalendar task
+	 * Polls the calendars and updates the list with the result. Called on
+	 * the scheduler's thread.
+	 * @return how many events changed
 	 */
-	private void startCalendarPoll(final CalendarConnectionData res) {
-		doAsynchronousTask = new TimerTask() {
-			@Override
+	private int pollCalendar() throws IOException {
+		//outside the GUI thread
+		PollCalendar pc = new PollCalendar(connection.getAuthToken(), db, atr, ResponseCache.getInstance(SCalendarActivity.this), alarmUpdater);
+		int changes = pc.call();
+		if (changes > 0)
+			reloadStore();
+
+		final EventListDiff diff = diffDisplayed();
+		// events cleared or deleted since are no longer due, edited ones are
+		// shown as they are now
+		notifier.update(diff.getRemoved(), diff.getInserted());
+		handler.post(new Runnable() {
 			public void run() {
-				//outside the GUI thread
-				if (Looper.myLooper() == null) {
-					Looper.prepare();
-				}
-
-				PollCalendar pc = new PollCalendar(res.getAuthToken(), db, atr);
-
-				try {
-					final Set<AndroidCalendar> calenders = pc.execute().get();
-					handler.post(new Runnable() {
-						public void run() {
-							//inside the GUI
-							updateList(calenders);
-						}
-					});
-				} catch (InterruptedException e) {
-					Log.e(this.getClass().getName(), e.getMessage(), e);
-				} catch (ExecutionException e) {
-					Log.e(this.getClass().getName(), e.getMessage(), e);
-				}
+				//inside the GUI
+				updateList(diff);
 			}
-		};
-		new Timer().schedule(doAsynchronousTask, 3000, SCalConstants.CAL_SYNC_PERIOD_MS);
+		});
+		return changes;
+	}
+
+	/**
+	 * Starts polling the calendars with the given connection
+	 */
+	private void startCalendarPoll(final CalendarConnectionData res) {
+		connection = res;
+		scheduler.start(poll, store, 0);
 	}
 
 	@Override
@@ -0,0 +1,197 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import sc.calendar.dataSource.EventStore;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Runs the calendar poll on a single thread with an adaptive period. The
+ * period stretches while polls find nothing new, drops back to the minimum
+ * when something changes, is cut short when an event is about to start, and
+ * backs off exponentially while polls are failing. Every delay has some
+ * jitter added so many devices don't poll in step.
+ * <p>
+ * Only one poll runs at a time. A poll asked for while one is running joins
+ * it rather than starting another, and nothing waits on a poll to finish;
+ * callers that want the result add a callback to its future.
+ * <p>
+ * There is one per process, so polls started by one activity instance and
+ * the next, such as across a rotation, still run one at a time on the same
+ * thread.
+ */
+class SyncScheduler {
+
+	// how much longer the period gets after each poll with no changes
+	private static final double STRETCH = 1.5;
+
+	// most the period is moved either way at random
+	private static final double JITTER = 0.1;
+
+	private static SyncScheduler instance;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final Random random = new Random();
+
+	// guarded by this
+	// returns how many events changed, throws if the poll failed
+	private Callable<Integer> poll;
+	private EventStore store;
+	private ScheduledFuture<?> next;
+	private ListenableFuture<Integer> inFlight;
+	private boolean running;
+	private long period = SCalConstants.CAL_SYNC_PERIOD_MS;
+	private int failures;
+
+	private final Runnable pollTask = new Runnable() {
+		public void run() {
+			pollNow();
+		}
+	};
+
+	private SyncScheduler() {
+	}
+
+	static synchronized SyncScheduler getInstance() {
+		if (instance == null) {
+			instance = new SyncScheduler();
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts running poll, replacing any polls already scheduled. A poll
+	 * already running is allowed to finish first.
+	 * @param store the events, for polling again as the next one starts
+	 */
+	synchronized void start(Callable<Integer> poll, EventStore store, long initialDelayMs) {
+		stop();
+		this.poll = poll;
+		this.store = store;
+		running = true;
+		period = SCalConstants.CAL_SYNC_PERIOD_MS;
+		failures = 0;
+		next = executor.schedule(pollTask, initialDelayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops polling if poll is still the one being run, so an owner that has
+	 * gone away doesn't stop the polls of the one that replaced it. A poll
+	 * already running is allowed to finish.
+	 */
+	synchronized void stop(Callable<Integer> poll) {
+		if (this.poll == poll)
+			stop();
+	}
+
+	// must hold this
+	private void stop() {
+		running = false;
+		inFlight = null;
+		if (next != null) {
+			next.cancel(false);
+			next = null;
+		}
+	}
+
+	/**
+	 * Polls as soon as possible, or joins the poll already running
+	 * @return the poll, or null if polling is stopped
+	 */
+	synchronized ListenableFuture<Integer> pollNow() {
+		if (!running)
+			return null;
+		if (inFlight != null)
+			return inFlight;
+
+		// this poll replaces the one scheduled
+		if (next != null)
+			next.cancel(false);
+
+		final ListenableFutureTask<Integer> task = ListenableFutureTask.create(poll);
+		inFlight = task;
+		task.addListener(new Runnable() {
+			public void run() {
+				pollDone(task);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		executor.execute(task);
+		return task;
+	}
+
+	private synchronized void pollDone(ListenableFutureTask<Integer> task) {
+		if (inFlight != task)
+			return;
+		inFlight = null;
+
+		boolean failed = false;
+		int changes = 0;
+		try {
+			changes = task.get();
+		} catch (ExecutionException e) {
+			Log.e(this.getClass().getName(), e.getMessage(), e.getCause());
+			failed = true;
+		} catch (CancellationException e) {
+			return;
+		} catch (InterruptedException e) {
+			// can't happen, the task is done
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (running)
+			next = executor.schedule(pollTask, nextDelay(failed, changes, System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	// must hold this
+	private long nextDelay(boolean failed, int changes, long now) {
+		long delay;
+		if (failed) {
+			failures++;
+			delay = Math.min((long) SCalConstants.CAL_SYNC_PERIOD_MS << Math.min(failures, 16), SCalConstants.MAX_CAL_SYNC_PERIOD_MS);
+		} else {
+			failures = 0;
+			if (changes > 0) {
+				period = SCalConstants.MIN_CAL_SYNC_PERIOD_MS;
+			} else {
+				period = Math.min((long) (period * STRETCH), SCalConstants.MAX_CAL_SYNC_PERIOD_MS);
+			}
+			delay = period;
+
+			// poll again around the time the next event starts, in case it
+			// is moved or cancelled at the last minute
+			long nextStart = store.getNextStartAfter(now);
+			if (nextStart > 0) {
+				delay = Math.min(delay, Math.max(nextStart - now, SCalConstants.MIN_CAL_SYNC_PERIOD_MS));
+			}
+		}
+		return delay + (long) (delay * JITTER * (random.nextDouble() * 2 - 1));
+	}
+}
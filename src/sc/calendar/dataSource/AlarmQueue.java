@@ -0,0 +1,141 @@
+/*
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The events that have yet to start, earliest first, so an alarm only ever
+ * has to be set for the head. Kept up to date from the pages of each poll,
+ * so the work done is proportional to what changed rather than to the number
+ * of events.
+ */
+public class AlarmQueue {
+	// guarded by this
+	private final TreeSet<CalendarEvent> upcoming = Sets.newTreeSet();
+	private final Map<String, CalendarEvent> byId = Maps.newHashMap();
+
+	// ids seen so far by each full sync in progress, anything queued for the
+	// calendar and not seen by the last page has been deleted
+	private final Map<String, Set<String>> fullSyncs = Maps.newHashMap();
+
+	/**
+	 * Replaces the queue with the events that start after now
+	 */
+	public synchronized void load(Collection<CalendarEvent> events, long now) {
+		upcoming.clear();
+		byId.clear();
+		fullSyncs.clear();
+		for (CalendarEvent e : events) {
+			add(e, now);
+		}
+	}
+
+	/**
+	 * Applies a page of a poll that has been stored in the db
+	 * @return true if the head of the queue changed, so the alarm needs
+	 * setting again
+	 */
+	public synchronized boolean apply(CalendarDelta page, long now) {
+		CalendarEvent head = upcoming.isEmpty() ? null : upcoming.first();
+		String calId = page.getCalId();
+
+		if (page.isAborted()) {
+			// the calendar was left as it was
+			fullSyncs.remove(calId);
+			return false;
+		}
+
+		for (String id : page.getRemoved()) {
+			remove(id);
+		}
+		for (CalendarEvent e : page.getChanged()) {
+			remove(e.getId());
+			add(e, now);
+		}
+
+		if (page.isFull()) {
+			Set<String> seen = fullSyncs.get(calId);
+			if (seen == null || page.isFirst()) {
+				seen = Sets.newHashSet();
+				fullSyncs.put(calId, seen);
+			}
+			for (CalendarEvent e : page.getChanged()) {
+				seen.add(e.getId());
+			}
+			if (page.isLast()) {
+				fullSyncs.remove(calId);
+				Iterator<CalendarEvent> it = upcoming.iterator();
+				while (it.hasNext()) {
+					CalendarEvent e = it.next();
+					if (calId.equals(e.getCalId()) && !seen.contains(e.getId())) {
+						it.remove();
+						byId.remove(e.getId());
+					}
+				}
+			}
+		}
+
+		CalendarEvent newHead = upcoming.isEmpty() ? null : upcoming.first();
+		return head != newHead;
+	}
+
+	/**
+	 * Takes the events that have started by now off the queue
+	 * @return the events, earliest first
+	 */
+	public synchronized List<CalendarEvent> pollDue(long now) {
+		List<CalendarEvent> due = Lists.newArrayList();
+		while (!upcoming.isEmpty() && upcoming.first().getStart() <= now) {
+			CalendarEvent e = upcoming.pollFirst();
+			byId.remove(e.getId());
+			due.add(e);
+		}
+		return due;
+	}
+
+	/**
+	 * Gets when the next event starts, or -1 if none are queued
+	 */
+	public synchronized long nextStart() {
+		return upcoming.isEmpty() ? -1 : upcoming.first().getStart();
+	}
+
+	// must hold this
+	private void add(CalendarEvent e, long now) {
+		if (e.getStart() > now && !e.getCleared()) {
+			upcoming.add(e);
+			byId.put(e.getId(), e);
+		}
+	}
+
+	// must hold this
+	private void remove(String id) {
+		CalendarEvent old = byId.remove(id);
+		if (old != null)
+			upcoming.remove(old);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource;
+
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+/**
+ * One page of the changes to a calendar returned by a poll. The pages of a
+ * full sync together hold every live event in the calendar, those of an
+ * incremental one only the events that have been added, changed or removed
+ * since the last poll. A poll of a calendar ends with either its last page,
+ * an aborted marker if the download failed part way, or an unchanged marker
+ * if there was nothing to download.
+ */
+public class CalendarDelta {
+	private final String calId;
+	private final boolean full;
+	private final boolean first;
+	private boolean last;
+	private boolean aborted;
+	private boolean unchanged;
+	private final Set<CalendarEvent> changed = Sets.newTreeSet();
+	private final Set<String> removed = Sets.newHashSet();
+	private long watermark;
+	private String etag;
+
+	public CalendarDelta(String calId, boolean full, boolean first) {
+		super();
+		this.calId = calId;
+		this.full = full;
+		this.first = first;
+	}
+
+	/**
+	 * Marks the end of a download that failed part way through
+	 */
+	public static CalendarDelta aborted(String calId) {
+		CalendarDelta delta = new CalendarDelta(calId, true, false);
+		delta.aborted = true;
+		return delta;
+	}
+
+	public String getCalId() {
+		return calId;
+	}
+
+	public boolean isFull() {
+		return full;
+	}
+
+	public boolean isFirst() {
+		return first;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public void setLast(boolean last) {
+		this.last = last;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Marks a calendar the server says has not changed since the last poll
+	 */
+	public static CalendarDelta unchanged(String calId) {
+		CalendarDelta delta = new CalendarDelta(calId, false, false);
+		delta.unchanged = true;
+		return delta;
+	}
+
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	public Set<CalendarEvent> getChanged() {
+		return changed;
+	}
+
+	public Set<String> getRemoved() {
+		return removed;
+	}
+
+	// the server side modification time the poll is complete up to, set on
+	// the last page
+	public long getWatermark() {
+		return watermark;
+	}
+
+	public void setWatermark(long watermark) {
+		this.watermark = watermark;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+}
@@ -17,27 +17,51 @@
 package sc.calendar.dataSource;
 
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
-	private static final long serialVersionUID = 1L;
-	private final Date startTime;
-	private final Date endTime;
+	private static final long serialVersionUID = 3L;
+
+	// 64 bit FNV-1a
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// epoch millis
+	private final long startTime;
+	private final long endTime;
 	private final String title;
 	private final String id;
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm");
 	private boolean cleared;
+	// interned, there are only a handful of calendars shared by every event
 	private final String calId;
+	// of the start, end and title, stored with the event so a sync can tell
+	// if it has changed without loading it
+	private final long contentHash;
 
 	public CalendarEvent(long startTime, long endTime, String title, String id, boolean cleared, String calId) {
 		super();
-		this.startTime = new Date(startTime);
-		this.endTime = new Date(endTime);
+		this.startTime = startTime;
+		this.endTime = endTime;
 		this.title = title;
 		this.id = id;
 		this.cleared = cleared;
-		this.calId = calId;
+		this.calId = calId == null ? null : calId.intern();
+		this.contentHash = contentHash(startTime, endTime, title);
+	}
+
+	public static long contentHash(long startTime, long endTime, String title) {
+		long hash = FNV_OFFSET;
+		hash = (hash ^ startTime) * FNV_PRIME;
+		hash = (hash ^ (startTime >>> 32)) * FNV_PRIME;
+		hash = (hash ^ endTime) * FNV_PRIME;
+		hash = (hash ^ (endTime >>> 32)) * FNV_PRIME;
+		if (title == null) {
+			// so a missing title differs from an empty one
+			return (hash ^ 0xff) * FNV_PRIME;
+		}
+		for (int i = 0; i < title.length(); i++) {
+			hash = (hash ^ title.charAt(i)) * FNV_PRIME;
+		}
+		return hash;
 	}
 
 	@Override
@@ -46,9 +70,9 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 		int result = 1;
 		result = prime * result + ((calId == null) ? 0 : calId.hashCode());
 		result = prime * result + (cleared ? 1231 : 1237);
-		result = prime * result + ((endTime == null) ? 0 : endTime.hashCode());
+		result = prime * result + (int) (endTime ^ (endTime >>> 32));
 		result = prime * result + ((id == null) ? 0 : id.hashCode());
-		result = prime * result + ((startTime == null) ? 0 : startTime.hashCode());
+		result = prime * result + (int) (startTime ^ (startTime >>> 32));
 		result = prime * result + ((title == null) ? 0 : title.hashCode());
 		return result;
 	}
@@ -62,28 +86,17 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		CalendarEvent other = (CalendarEvent) obj;
-		if (calId == null) {
-			if (other.calId != null)
-				return false;
-		} else if (!calId.equals(other.calId))
-			return false;
-		if (cleared != other.cleared)
+		// primitives first, they are cheapest and most likely to differ
+		if (startTime != other.startTime || endTime != other.endTime || cleared != other.cleared)
 			return false;
-		if (endTime == null) {
-			if (other.endTime != null)
-				return false;
-		} else if (!endTime.equals(other.endTime))
+		// interned, so usually the same instance
+		if (calId != other.calId && (calId == null || !calId.equals(other.calId)))
 			return false;
 		if (id == null) {
 			if (other.id != null)
 				return false;
 		} else if (!id.equals(other.id))
 			return false;
-		if (startTime == null) {
-			if (other.startTime != null)
-				return false;
-		} else if (!startTime.equals(other.startTime))
-			return false;
 		if (title == null) {
 			if (other.title != null)
 				return false;
@@ -93,27 +106,27 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 	}
 
 	public String getFormattedStartTime() {
-		return dateFormat.format(startTime);
+		return DateCodec.formatDisplay(startTime);
 	}
 
 	public String getFormattedEndTime() {
-		return dateFormat.format(endTime);
+		return DateCodec.formatDisplay(endTime);
 	}
 
 	public String getTitle() {
 		return title;
 	}
 
-	public Date getStart() {
+	// epoch millis
+	public long getStart() {
 		return startTime;
 	}
 
 	@Override
 	public int compareTo(CalendarEvent another) {
-		long diff = (startTime.getTime() - another.startTime.getTime());
-		if (diff < 0)
+		if (startTime < another.startTime)
 			return -1;
-		if (diff > 0)
+		if (startTime > another.startTime)
 			return 1;
 		return id.compareTo(another.id);
 	}
@@ -126,7 +139,8 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 		return cleared;
 	}
 
-	public Date getEnd() {
+	// epoch millis
+	public long getEnd() {
 		return endTime;
 	}
 
@@ -134,12 +148,6 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 		return this.title;
 	}
 
-	// merges two events and returns true if something has changed
-	public boolean mergeEvents(CalendarEvent old) {
-		this.cleared = cleared || old.getCleared();
-		return !this.equals(old);
-	}
-
 	public void setCleared(boolean b) {
 		cleared = b;
 	}
@@ -148,4 +156,8 @@ public class CalendarEvent implements Comparable<CalendarEvent>, Serializable {
 		return calId;
 	}
 
+	public long getContentHash() {
+		return contentHash;
+	}
+
 }
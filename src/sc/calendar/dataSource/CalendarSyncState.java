@@ -0,0 +1,97 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource;
+
+/**
+ * How far a calendar has been synced with the server, kept in the db so a
+ * restart can carry on incrementally.
+ */
+public class CalendarSyncState {
+	private final String calId;
+	private String syncToken;
+	private String etag;
+	private long lastPoll;
+	private long watermark;
+	private int eventCount;
+
+	public CalendarSyncState(String calId) {
+		super();
+		this.calId = calId;
+	}
+
+	public CalendarSyncState(String calId, String syncToken, String etag, long lastPoll, long watermark, int eventCount) {
+		super();
+		this.calId = calId;
+		this.syncToken = syncToken;
+		this.etag = etag;
+		this.lastPoll = lastPoll;
+		this.watermark = watermark;
+		this.eventCount = eventCount;
+	}
+
+	public String getCalId() {
+		return calId;
+	}
+
+	public String getSyncToken() {
+		return syncToken;
+	}
+
+	public void setSyncToken(String syncToken) {
+		this.syncToken = syncToken;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	// time of the last poll that completed for this calendar
+	public long getLastPoll() {
+		return lastPoll;
+	}
+
+	public void setLastPoll(long lastPoll) {
+		this.lastPoll = lastPoll;
+	}
+
+	// server modification time the stored events are complete up to, 0 if
+	// the calendar has never been synced
+	public long getWatermark() {
+		return watermark;
+	}
+
+	public void setWatermark(long watermark) {
+		this.watermark = watermark;
+	}
+
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	public void setEventCount(int eventCount) {
+		this.eventCount = eventCount;
+	}
+
+	public boolean hasWatermark() {
+		return watermark > 0;
+	}
+
+}
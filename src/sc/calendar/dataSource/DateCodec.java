@@ -0,0 +1,218 @@
+/*
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource;
+
+import java.util.TimeZone;
+
+/**
+ * Converts between epoch millis and the date strings used by google calendar
+ * and the event list. Safe to use from any thread, unlike SimpleDateFormat,
+ * and works directly on the characters rather than going through Calendar
+ * objects.
+ */
+public final class DateCodec {
+	private static final long MS_PER_MINUTE = 60 * 1000;
+	private static final long MS_PER_DAY = 24 * 60 * MS_PER_MINUTE;
+
+	// most display strings kept, one per local minute formatted, a power of
+	// two
+	private static final int MAX_CACHED_MINUTES = 256;
+
+	// direct mapped on the local minute so a hit allocates nothing, guarded
+	// by displayMinutes
+	private static final long[] displayMinutes = new long[MAX_CACHED_MINUTES];
+	private static final String[] displayStrings = new String[MAX_CACHED_MINUTES];
+
+	// TimeZone.getDefault() returns a new copy every call, so keep one until
+	// the zone changes
+	private static volatile TimeZone zone = TimeZone.getDefault();
+
+	private DateCodec() {
+	}
+
+	/**
+	 * Picks up a new default time zone, should be called when the device's
+	 * zone changes
+	 */
+	public static void timeZoneChanged() {
+		zone = TimeZone.getDefault();
+	}
+
+	/**
+	 * Parses an all day date, yyyy-MM-dd, to local midnight at the start of
+	 * that day
+	 * @throws IllegalArgumentException if the date is malformed
+	 */
+	public static long parseDate(String date) {
+		if (date == null || date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-')
+			throw new IllegalArgumentException("Bad date: " + date);
+		int year = digits(date, 0, 4);
+		int month = digits(date, 5, 2);
+		int day = digits(date, 8, 2);
+		if (month < 1 || month > 12 || day < 1 || day > 31)
+			throw new IllegalArgumentException("Bad date: " + date);
+
+		return localToUtc(daysFromCivil(year, month, day) * MS_PER_DAY, zone);
+	}
+
+	/**
+	 * Converts a wall clock time, as millis since the local epoch, to the
+	 * instant it happens at, resolving clock changes as SimpleDateFormat
+	 * does. A time that happens twice, where daylight saving ends, takes the
+	 * later one. A time that never happens, such as midnight where daylight
+	 * saving starts then, falls forward past the gap.
+	 */
+	private static long localToUtc(long local, TimeZone tz) {
+		// the offsets either side of any change near this time
+		long near = local - tz.getOffset(local);
+		int before = tz.getOffset(near - MS_PER_DAY);
+		int after = tz.getOffset(near + MS_PER_DAY);
+		if (before == after)
+			return local - before;
+
+		// the smaller offset gives the later instant
+		int low = Math.min(before, after);
+		int high = Math.max(before, after);
+		if (tz.getOffset(local - low) == low)
+			return local - low;
+		if (tz.getOffset(local - high) == high)
+			return local - high;
+
+		// in the gap: the offset from before the change puts it that far
+		// after the change
+		return local - before;
+	}
+
+	/**
+	 * Formats a time as RFC 3339 in UTC, yyyy-MM-ddTHH:mm:ss.SSSZ, for use in
+	 * calendar queries
+	 */
+	public static String formatRfc3339(long millis) {
+		char[] out = new char[24];
+		int pos = formatDate(out, 0, millis, '-', true);
+		out[pos++] = 'T';
+		pos = formatTime(out, pos, millis, true);
+		out[pos++] = '.';
+		pos = pad(out, pos, (int) floorMod(millis, 1000), 3);
+		out[pos] = 'Z';
+		return new String(out);
+	}
+
+	/**
+	 * Formats a time for display in local time, dd/MM/yyyy HH:mm. Results are
+	 * cached per minute as the event list shows the same few times over and
+	 * over.
+	 */
+	public static String formatDisplay(long millis) {
+		long local = millis + zone.getOffset(millis);
+		long minute = floorDiv(local, MS_PER_MINUTE);
+		int slot = (int) (minute & (MAX_CACHED_MINUTES - 1));
+		synchronized (displayMinutes) {
+			if (displayStrings[slot] != null && displayMinutes[slot] == minute)
+				return displayStrings[slot];
+		}
+
+		char[] out = new char[16];
+		int pos = formatDate(out, 0, local, '/', false);
+		out[pos++] = ' ';
+		formatTime(out, pos, local, false);
+		String formatted = new String(out);
+		synchronized (displayMinutes) {
+			displayMinutes[slot] = minute;
+			displayStrings[slot] = formatted;
+		}
+		return formatted;
+	}
+
+	private static int formatDate(char[] out, int pos, long millis, char separator, boolean yearFirst) {
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = floorDiv(millis, MS_PER_DAY) + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+		if (yearFirst) {
+			pos = pad(out, pos, year, 4);
+			out[pos++] = separator;
+			pos = pad(out, pos, month, 2);
+			out[pos++] = separator;
+			return pad(out, pos, day, 2);
+		}
+		pos = pad(out, pos, day, 2);
+		out[pos++] = separator;
+		pos = pad(out, pos, month, 2);
+		out[pos++] = separator;
+		return pad(out, pos, year, 4);
+	}
+
+	private static int formatTime(char[] out, int pos, long millis, boolean seconds) {
+		int ms = (int) floorMod(millis, MS_PER_DAY);
+		pos = pad(out, pos, ms / (60 * 60 * 1000), 2);
+		out[pos++] = ':';
+		pos = pad(out, pos, ms / (60 * 1000) % 60, 2);
+		if (seconds) {
+			out[pos++] = ':';
+			pos = pad(out, pos, ms / 1000 % 60, 2);
+		}
+		return pos;
+	}
+
+	// days since the epoch of a date in the proleptic gregorian calendar
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		int yoe = (int) (year - era * 400);
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				throw new IllegalArgumentException("Bad date: " + s);
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static int pad(char[] out, int pos, int value, int width) {
+		for (int i = pos + width - 1; i >= pos; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + width;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			q--;
+		return q;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * In memory index of the events that have not been cleared, ordered by start
+ * time, for answering time based questions without going through every
+ * event. The events are held in an array sorted by start with a tree of the
+ * latest end over each part of it, so lookups binary search on start and
+ * only descend into parts of the tree that can hold a match.
+ * <p>
+ * The index is immutable and swapped whole on {@link #replace}, so any
+ * thread can query it while the poll loads the next one. Events cleared since
+ * the last load are skipped.
+ */
+public class EventStore {
+
+	private volatile Index index = new Index(Collections.<CalendarEvent> emptyList());
+
+	/**
+	 * Replaces every event in the store
+	 * @param events the uncleared events, cheapest to index when already in
+	 * start order
+	 */
+	public void replace(Collection<CalendarEvent> events) {
+		index = new Index(events);
+	}
+
+	public int size() {
+		return index.events.length;
+	}
+
+	/**
+	 * Gets the events that start before time, earliest first
+	 */
+	public List<CalendarEvent> getDueBefore(long time) {
+		Index idx = index;
+		return idx.collect(0, idx.firstStartAtOrAfter(time));
+	}
+
+	/**
+	 * Gets the events that start in [from, to), earliest first
+	 */
+	public List<CalendarEvent> getStartingBetween(long from, long to) {
+		Index idx = index;
+		return idx.collect(idx.firstStartAtOrAfter(from), idx.firstStartAtOrAfter(to));
+	}
+
+	/**
+	 * Gets the events that are on at any point in [from, to), earliest start
+	 * first
+	 */
+	public List<CalendarEvent> getOverlapping(long from, long to) {
+		Index idx = index;
+		List<CalendarEvent> out = Lists.newArrayList();
+		int end = idx.firstStartAtOrAfter(to);
+		if (end > 0)
+			idx.collectEndingAfter(1, 0, idx.leaves, end, from, out);
+		return out;
+	}
+
+	/**
+	 * Gets when the first event starting after time starts, or -1 if there
+	 * is none
+	 */
+	public long getNextStartAfter(long time) {
+		Index idx = index;
+		for (int i = idx.firstStartAtOrAfter(time + 1); i < idx.events.length; i++) {
+			if (!idx.events[i].getCleared())
+				return idx.starts[i];
+		}
+		return -1;
+	}
+
+	private static class Index {
+		final CalendarEvent[] events;
+		final long[] starts;
+		// number of leaves in the tree, a power of two at least events.length
+		final int leaves;
+		// maxEnds[1] is the root, node n has children 2n and 2n + 1, leaf i
+		// is node leaves + i
+		final long[] maxEnds;
+
+		Index(Collection<CalendarEvent> source) {
+			events = source.toArray(new CalendarEvent[source.size()]);
+			if (!isSorted(events))
+				Arrays.sort(events);
+
+			starts = new long[events.length];
+			int n = 1;
+			while (n < events.length)
+				n <<= 1;
+			leaves = n;
+			maxEnds = new long[2 * n];
+			Arrays.fill(maxEnds, Long.MIN_VALUE);
+			for (int i = 0; i < events.length; i++) {
+				starts[i] = events[i].getStart();
+				maxEnds[n + i] = events[i].getEnd();
+			}
+			for (int i = n - 1; i > 0; i--) {
+				maxEnds[i] = Math.max(maxEnds[2 * i], maxEnds[2 * i + 1]);
+			}
+		}
+
+		private static boolean isSorted(CalendarEvent[] events) {
+			for (int i = 1; i < events.length; i++) {
+				if (events[i - 1].compareTo(events[i]) > 0)
+					return false;
+			}
+			return true;
+		}
+
+		// index of the first event starting at or after time
+		int firstStartAtOrAfter(long time) {
+			int lo = 0;
+			int hi = starts.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (starts[mid] < time)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		List<CalendarEvent> collect(int from, int to) {
+			List<CalendarEvent> out = Lists.newArrayListWithCapacity(Math.max(to - from, 0));
+			for (int i = from; i < to; i++) {
+				if (!events[i].getCleared())
+					out.add(events[i]);
+			}
+			return out;
+		}
+
+		// adds the events in [0, limit) under node, which covers
+		// [nodeStart, nodeStart + width), that end after time
+		void collectEndingAfter(int node, int nodeStart, int width, int limit, long time, List<CalendarEvent> out) {
+			if (nodeStart >= limit || maxEnds[node] <= time)
+				return;
+			if (width == 1) {
+				if (!events[nodeStart].getCleared())
+					out.add(events[nodeStart]);
+				return;
+			}
+			int half = width / 2;
+			collectEndingAfter(2 * node, nodeStart, half, limit, time, out);
+			collectEndingAfter(2 * node + 1, nodeStart + half, half, limit, time, out);
+		}
+	}
+}
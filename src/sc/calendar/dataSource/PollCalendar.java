@@ -17,101 +17,360 @@
 package sc.calendar.dataSource;
 
 import java.io.IOException;
-import java.text.ParseException;
-import java.util.Date;
+import java.io.InterruptedIOException;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import sc.calendar.SCalConstants;
 import sc.calendar.SCalendarActivity.AuthTokenRenewer;
 import sc.calendar.dataSource.googleApi.CalendarAuthTokenResolver;
+import sc.calendar.dataSource.googleApi.ResponseCache;
 import sc.calendar.db.DbInterface;
-import android.os.AsyncTask;
+import android.database.SQLException;
 import android.util.Log;
 
-import com.google.api.client.util.DateTime;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.calendar.Calendar;
 import com.google.api.services.calendar.model.CalendarList;
 import com.google.api.services.calendar.model.CalendarListEntry;
 import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventDateTime;
 import com.google.api.services.calendar.model.Events;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-public class PollCalendar extends AsyncTask<String, Integer, Set<AndroidCalendar>> {
+/**
+ * A single poll of every calendar into the db. Runs on the calling thread,
+ * fetching the calendars on a shared pool while storing what they return.
+ */
+public class PollCalendar implements Callable<Integer> {
+	// status given by the api to events that have been deleted
+	private static final String STATUS_CANCELLED = "cancelled";
+
+	// returned by the api when an updatedMin watermark is too old to be used
+	private static final int HTTP_GONE = 410;
+
+	// returned by the api when the auth token has expired or been revoked
+	private static final int HTTP_UNAUTHORIZED = 401;
+
+	// most calendars fetched at once, shared by every poll
+	private static final int MAX_PARALLEL_FETCHES = 4;
+	private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_FETCHES);
+
+	// events asked for per request
+	private static final int PAGE_SIZE = 250;
+
+	// pages downloaded but not yet stored, fetches wait when this is full
+	private static final int MAX_QUEUED_PAGES = 4;
+	private static final long MAX_PAGE_WAIT_MS = 60000;
+
+	// response cache key of the calendar list
+	public static final String CALENDAR_LIST_KEY = "calendarList";
+
+	/**
+	 * Told about each page once it has been stored, on the polling thread
+	 */
+	public interface DeltaListener {
+		void onApplied(CalendarDelta page);
+	}
+
 	private final AuthTokenRenewer atr;
+	private final DeltaListener listener;
 	
 	private Calendar client;
 	private final String authToken;
 	private final DbInterface db;
+	private final ResponseCache responseCache;
 	
 
-	public PollCalendar(String authToken, DbInterface db, AuthTokenRenewer atr) {
+	public PollCalendar(String authToken, DbInterface db, AuthTokenRenewer atr, ResponseCache responseCache, DeltaListener listener) {
 		this.authToken = authToken;
 		this.db = db;
 		this.atr = atr;
+		this.responseCache = responseCache;
+		this.listener = listener;
 	}
 
-	@Override
-	protected Set<AndroidCalendar> doInBackground(String... params) {
+	/**
+	 * Syncs every calendar into the db.
+	 * @return how many events were added, changed or removed
+	 * @throws IOException if the calendars could not be listed, a new auth
+	 * token has already been asked for if it was rejected, or if a calendar
+	 * stopped sending pages
+	 */
+	public Integer call() throws IOException {
 		client = CalendarAuthTokenResolver.getClient(authToken);
 
-		Set<AndroidCalendar> results = Sets.newHashSet();
+		int changes = 0;
 		CalendarList feed;
 		try {
-			feed = client.calendarList().list().execute();
+			feed = responseCache.execute(CALENDAR_LIST_KEY, client.calendarList().list(), CalendarList.class);
 			if (feed.getItems() != null) {
+				// fetch the calendars side by side, streaming their pages
+				// through a bounded queue to this thread, which applies them
+				// to the db one at a time
+				BlockingQueue<CalendarDelta> pages = new ArrayBlockingQueue<CalendarDelta>(MAX_QUEUED_PAGES);
+				Map<String, CalendarSyncState> states = Maps.newHashMap();
 				for (CalendarListEntry calendar : feed.getItems()) {
-					Set<CalendarEvent> e = getEvents(calendar.getId());
-					AndroidCalendar ac = new AndroidCalendar(calendar.getId(), e);
-					results.add(ac);
-					db.syncDb(ac);
+					CalendarSyncState state = db.getSyncState(calendar.getId());
+					if (state == null)
+						state = new CalendarSyncState(calendar.getId());
+					states.put(state.getCalId(), state);
+
+					fetchExecutor.execute(new EventFetch(state, pages));
+				}
+
+				// calendars yet to send their last page or an aborted marker
+				Set<String> outstanding = Sets.newHashSet(states.keySet());
+				// calendars with a page that failed to store
+				Set<String> failed = Sets.newHashSet();
+				while (!outstanding.isEmpty()) {
+					CalendarDelta page;
+					try {
+						page = pages.poll(MAX_PAGE_WAIT_MS, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+
+					if (page == null) {
+						// a fetch has stalled, leave the calendars still going
+						// as they were rather than wait on it for good
+						for (String calId : outstanding) {
+							if (!failed.contains(calId))
+								abort(calId);
+						}
+						throw new IOException("Gave up waiting for events from " + outstanding);
+					}
+
+					if (page.isUnchanged()) {
+						// nothing to store
+						outstanding.remove(page.getCalId());
+						continue;
+					}
+
+					if (failed.contains(page.getCalId())) {
+						// drain the rest of a calendar that could not be
+						// stored, it is fetched again next poll
+						if (page.isLast() || page.isAborted())
+							outstanding.remove(page.getCalId());
+						continue;
+					}
+
+					CalendarSyncState state = null;
+					if (page.isLast()) {
+						state = states.get(page.getCalId());
+						state.setWatermark(page.getWatermark());
+						state.setEtag(page.getEtag());
+						state.setLastPoll(System.currentTimeMillis());
+					}
+
+					try {
+						changes += db.applyDelta(page, state);
+						listener.onApplied(page);
+					} catch (SQLException e) {
+						Log.e(this.getClass().getName(), e.getMessage(), e);
+						abort(page.getCalId());
+						failed.add(page.getCalId());
+					}
+
+					if (page.isLast() || page.isAborted())
+						outstanding.remove(page.getCalId());
 				}
 			}
 		} catch (IOException e) {
 			Log.e(this.getClass().getName(), e.getMessage(), e);
-			//auth failed, request new token
-			atr.renewAuthToken();
+			if (e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == HTTP_UNAUTHORIZED) {
+				//auth failed, request new token
+				atr.renewAuthToken();
+			}
+			// anything else is left to the scheduler to retry
+			throw e;
 		}
 
-		return results;
+		return changes;
 	}
 
-	Set<CalendarEvent> getEvents(String id) {
-
-		Set<CalendarEvent> eventsOut = Sets.newTreeSet();
+	/**
+	 * Stops a calendar whose page failed to store from going any further.
+	 * Its earlier pages stay, but without the sync state saved or the live
+	 * ids kept, so nothing is deleted and the next poll fetches it again.
+	 */
+	private void abort(String calId) {
+		CalendarDelta aborted = CalendarDelta.aborted(calId);
 		try {
+			db.applyDelta(aborted, null);
+		} catch (SQLException e) {
+			Log.e(this.getClass().getName(), e.getMessage(), e);
+		}
+		listener.onApplied(aborted);
+	}
+
+	/**
+	 * Downloads one calendar onto the page queue, ending with either its last
+	 * page or an aborted marker
+	 */
+	private class EventFetch implements Runnable {
+		private final CalendarSyncState state;
+		private final BlockingQueue<CalendarDelta> pages;
+
+		EventFetch(CalendarSyncState state, BlockingQueue<CalendarDelta> pages) {
+			this.state = state;
+			this.pages = pages;
+		}
+
+		public void run() {
+			boolean ended = false;
+			try {
+				getEvents(state, pages);
+				ended = true;
+			} catch (IOException e) {
+				Log.e(PollCalendar.this.getClass().getName(), e.getMessage(), e);
+			} catch (RuntimeException e) {
+				// such as a response the client could not parse
+				Log.e(PollCalendar.this.getClass().getName(), e.getMessage(), e);
+			} finally {
+				if (!ended) {
+					// leave the rest of this calendar as it was, try again
+					// next poll
+					try {
+						put(pages, CalendarDelta.aborted(state.getCalId()));
+					} catch (IOException e) {
+						Log.e(PollCalendar.this.getClass().getName(), e.getMessage(), e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Streams the events that have changed since the last poll of the
+	 * calendar onto the page queue, or all of them if the calendar has not
+	 * been polled before or the server will no longer serve changes from that
+	 * far back.
+	 */
+	void getEvents(CalendarSyncState state, BlockingQueue<CalendarDelta> pages) throws IOException {
+		String id = state.getCalId();
+		if (state.hasWatermark()) {
+			try {
+				getEvents(id, state.getWatermark(), state.getEtag(), pages);
+				return;
+			} catch (HttpResponseException e) {
+				if (e.getStatusCode() != HTTP_GONE)
+					throw e;
+				Log.i(this.getClass().getName(), "Watermark rejected for " + id + ", doing full sync");
+			}
+		}
+		getEvents(id, null, null, pages);
+	}
+
+	/**
+	 * @param etag of the first page last time this query was made, if it
+	 * still matches the calendar has not changed and nothing is downloaded
+	 */
+	private void getEvents(String id, Long updatedMin, String etag, BlockingQueue<CalendarDelta> pages) throws IOException {
+		boolean full = updatedMin == null;
+		long pollStart = System.currentTimeMillis();
+		String timeMin = DateCodec.formatRfc3339(pollStart - SCalConstants.BUFFER_PERIOD_MS);
+
+		long watermark = pollStart;
+		String pageToken = null;
+		boolean first = true;
+		do {
 			com.google.api.services.calendar.Calendar.Events.List query = client.events().list(id);
+			query.setTimeMin(timeMin);
+			query.setMaxResults(PAGE_SIZE);
+			if (!full) {
+				query.setUpdatedMin(DateCodec.formatRfc3339(updatedMin));
+				query.setShowDeleted(true);
+			}
+			if (pageToken != null) {
+				query.setPageToken(pageToken);
+			}
+			Events events;
+			if (first) {
+				HttpResponse response = ResponseCache.executeIfNoneMatch(query, etag);
+				if (response == null) {
+					put(pages, CalendarDelta.unchanged(id));
+					return;
+				}
+				events = response.parseAs(Events.class);
+				etag = response.getHeaders().getETag();
+				if (etag == null)
+					etag = events.getEtag();
+			} else {
+				events = query.execute();
+			}
 
-			String date = SCalConstants.rfc3339.format(new Date(System.currentTimeMillis() - SCalConstants.BUFFER_PERIOD_MS));
-			query.setTimeMin(date);
-			Events events = query.execute();
+			if (first) {
+				// the feed's own modification time is the safest point to
+				// resume from, fall back to when we asked
+				if (events.getUpdated() != null)
+					watermark = events.getUpdated().getValue();
+			}
 
+			CalendarDelta page = new CalendarDelta(id, full, first);
 			if (events.getItems() != null) {
 				for (Event e : events.getItems()) {
-
-					DateTime start = e.getStart().getDateTime();
-					if (start == null)
+					if (STATUS_CANCELLED.equals(e.getStatus())) {
+						page.getRemoved().add(e.getId());
+					} else {
 						try {
-							start = new DateTime(SCalConstants.simpleDateFormat.parse(e.getStart().getDate()));
-						} catch (ParseException e1) {
+							page.getChanged().add(toCalendarEvent(e, id));
+						} catch (IllegalArgumentException e1) {
+							// skip it rather than lose the whole calendar
 							Log.e(this.getClass().getName(), e1.getMessage(), e1);
 						}
+					}
+				}
+			}
 
-					DateTime end = e.getEnd().getDateTime();
-					if (end == null)
-						try {
-							end = new DateTime(SCalConstants.simpleDateFormat.parse(e.getEnd().getDate()));
-						} catch (ParseException e1) {
-							Log.e(this.getClass().getName(), e1.getMessage(), e1);
-						}
+			pageToken = events.getNextPageToken();
+			if (pageToken == null) {
+				page.setLast(true);
+				page.setWatermark(watermark);
+				page.setEtag(etag);
+			}
+			put(pages, page);
+			first = false;
+		} while (pageToken != null);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the event has no usable start or
+	 * end
+	 */
+	private CalendarEvent toCalendarEvent(Event e, String calId) {
+		return new CalendarEvent(toMillis(e.getStart()), toMillis(e.getEnd()), e.getSummary(), e.getId(), false, calId);
+	}
 
-					CalendarEvent ce = new CalendarEvent(start.getValue(), end.getValue(), e.getSummary(), e.getId(), false, id);
+	// all day events only have a date
+	private static long toMillis(EventDateTime time) {
+		if (time == null)
+			throw new IllegalArgumentException("Event has no time");
+		if (time.getDateTime() != null)
+			return time.getDateTime().getValue();
+		return DateCodec.parseDate(time.getDate());
+	}
 
-					eventsOut.add(ce);
-				}
-			}
-		} catch (IOException e) {
-			Log.e(this.getClass().getName(), e.getMessage(), e);
+	/**
+	 * Hands a page to the db writer, waiting while it is behind. Gives up if
+	 * the writer has stopped taking pages so the fetch thread is not lost.
+	 */
+	private static void put(BlockingQueue<CalendarDelta> pages, CalendarDelta page) throws IOException {
+		try {
+			if (!pages.offer(page, MAX_PAGE_WAIT_MS, TimeUnit.MILLISECONDS))
+				throw new IOException("Gave up waiting to store events for " + page.getCalId());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
 		}
-		return eventsOut;
 	}
-}
\ No newline at end of file
+}
@@ -20,7 +20,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import sc.calendar.SCalConstants;
+import sc.calendar.dataSource.PollCalendar;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
@@ -33,19 +33,10 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 
-import com.google.api.client.extensions.android2.AndroidHttp;
-import com.google.api.client.googleapis.GoogleHeaders;
 import com.google.api.client.googleapis.extensions.android2.auth.GoogleAccountManager;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.json.JsonHttpRequest;
-import com.google.api.client.http.json.JsonHttpRequestInitializer;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.calendar.Calendar;
-import com.google.api.services.calendar.CalendarRequest;
+import com.google.api.services.calendar.model.CalendarList;
 
 /**
  * Heavily based on CalendarSample.java sample code by Yaniv Inbar, under Apache
@@ -75,23 +66,7 @@ public class CalendarAuthTokenResolver extends Activity {
 	private String authToken;
 
 	public static com.google.api.services.calendar.Calendar getClient(final String authToken) {
-
-		HttpTransport transport = AndroidHttp.newCompatibleTransport();
-
-		JsonFactory jsonFactory = new JacksonFactory();
-
-		return com.google.api.services.calendar.Calendar.builder(transport, jsonFactory).setApplicationName("SCalendar")
-				.setHttpRequestInitializer(new HttpRequestInitializer() {
-					public void initialize(HttpRequest request) throws IOException {
-						request.getHeaders().setAuthorization(GoogleHeaders.getGoogleLoginValue(authToken));
-					}
-				}).setJsonHttpRequestInitializer(new JsonHttpRequestInitializer() {
-
-					public void initialize(JsonHttpRequest request) throws IOException {
-						CalendarRequest calendarRequest = (CalendarRequest) request;
-						calendarRequest.setKey(SCalConstants.KEY);
-					}
-				}).build();
+		return CalendarClientHolder.getClient(authToken);
 	}
 
 	@Override
@@ -193,10 +168,10 @@ public class CalendarAuthTokenResolver extends Activity {
 
 	void onAuthToken() {
 		
-		//test connection
+		//test connection, a cached calendar list makes this a conditional request
 		Calendar client = CalendarAuthTokenResolver.getClient(authToken);
 		try {
-			client.calendarList().list().execute();
+			ResponseCache.getInstance(this).execute(PollCalendar.CALENDAR_LIST_KEY, client.calendarList().list(), CalendarList.class);
 		}			
 		catch (IOException e) {
 			handleGoogleException(e);
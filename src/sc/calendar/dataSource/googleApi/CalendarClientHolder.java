@@ -0,0 +1,89 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource.googleApi;
+
+import java.io.IOException;
+
+import sc.calendar.SCalConstants;
+
+import com.google.api.client.extensions.android2.AndroidHttp;
+import com.google.api.client.googleapis.GoogleHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.json.JsonHttpRequest;
+import com.google.api.client.http.json.JsonHttpRequestInitializer;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.CalendarRequest;
+
+/**
+ * Holds a single calendar client for the life of the app. The transport,
+ * and with it the pooled keep-alive connections and TLS sessions, and the
+ * json factory are shared by every poll. Only the authorization header
+ * changes when the auth token does.
+ * 
+ * Listing requests ask for just the fields the app reads, and every
+ * response may come back gzipped.
+ */
+public final class CalendarClientHolder {
+
+	private static final HttpTransport transport = AndroidHttp.newCompatibleTransport();
+
+	private static final JsonFactory jsonFactory = new JacksonFactory();
+
+	private static volatile String authorization;
+
+	// the parts of each response that are actually used, everything else
+	// (attendees, descriptions, reminders...) is left on the server
+	static final String CALENDAR_LIST_FIELDS = "etag,nextPageToken,items(id)";
+	static final String EVENT_LIST_FIELDS = "etag,updated,nextPageToken,items(id,status,summary,start,end)";
+
+	private static final String GZIP = "gzip";
+
+	private static final Calendar client = Calendar.builder(transport, jsonFactory).setApplicationName("SCalendar")
+			.setHttpRequestInitializer(new HttpRequestInitializer() {
+				public void initialize(HttpRequest request) throws IOException {
+					request.getHeaders().setAuthorization(authorization);
+					// responses are unzipped by HttpResponse.getContent
+					request.getHeaders().setAcceptEncoding(GZIP);
+				}
+			}).setJsonHttpRequestInitializer(new JsonHttpRequestInitializer() {
+
+				public void initialize(JsonHttpRequest request) throws IOException {
+					CalendarRequest calendarRequest = (CalendarRequest) request;
+					calendarRequest.setKey(SCalConstants.KEY);
+					if (request instanceof Calendar.CalendarList.List) {
+						calendarRequest.setFields(CALENDAR_LIST_FIELDS);
+					} else if (request instanceof Calendar.Events.List) {
+						calendarRequest.setFields(EVENT_LIST_FIELDS);
+					}
+				}
+			}).build();
+
+	private CalendarClientHolder() {
+	}
+
+	/**
+	 * Gets the shared client, authorized with the given token
+	 */
+	public static Calendar getClient(String authToken) {
+		authorization = GoogleHeaders.getGoogleLoginValue(authToken);
+		return client;
+	}
+}
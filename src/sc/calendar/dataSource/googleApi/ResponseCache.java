@@ -0,0 +1,191 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.dataSource.googleApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.json.JsonHttpRequest;
+import com.google.api.client.json.JsonFactory;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Small on disk cache of api responses and their ETags, so a request can be
+ * made conditional and a 304 answered from the cache without parsing.
+ */
+public class ResponseCache {
+
+	private static final String TAG = "ResponseCache";
+
+	private static final String CACHE_DIR = "responses";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int HTTP_NOT_MODIFIED = 304;
+
+	private static ResponseCache instance;
+
+	private final File dir;
+
+	// entries read or written by this process, guarded by this
+	private final Map<String, Entry> entries = Maps.newHashMap();
+
+	private static class Entry {
+		final String etag;
+		final String body;
+		Object parsed;
+
+		Entry(String etag, String body, Object parsed) {
+			this.etag = etag;
+			this.body = body;
+			this.parsed = parsed;
+		}
+	}
+
+	private ResponseCache(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	public static synchronized ResponseCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new ResponseCache(new File(context.getCacheDir(), CACHE_DIR));
+		}
+		return instance;
+	}
+
+	/**
+	 * Executes the request, sending the ETag of the last response cached
+	 * under key. If the server says it has not changed the cached response is
+	 * returned, otherwise the new one is cached and returned. A cached
+	 * response that can no longer be parsed is dropped and the request made
+	 * again without its ETag.
+	 */
+	public <T> T execute(String key, JsonHttpRequest request, Class<T> type) throws IOException {
+		JsonFactory jsonFactory = request.getClient().getJsonFactory();
+		Entry cached = get(key);
+		if (cached != null) {
+			HttpResponse response = executeIfNoneMatch(request, cached.etag);
+			if (response != null)
+				return store(key, response, type, jsonFactory);
+
+			try {
+				return parsed(cached, type, jsonFactory);
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			} catch (IllegalArgumentException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			remove(key, cached);
+		}
+		return store(key, executeIfNoneMatch(request, null), type, jsonFactory);
+	}
+
+	private <T> T store(String key, HttpResponse response, Class<T> type, JsonFactory jsonFactory) throws IOException {
+		String body = response.parseAsString();
+		T result = jsonFactory.fromString(body, type);
+		String etag = response.getHeaders().getETag();
+		if (etag != null) {
+			put(key, new Entry(etag, body, result));
+		}
+		return result;
+	}
+
+	/**
+	 * Executes the request with If-None-Match set to etag, if there is one.
+	 * @return the response, or null if the server says nothing has changed
+	 */
+	public static HttpResponse executeIfNoneMatch(JsonHttpRequest request, String etag) throws IOException {
+		HttpRequest httpRequest = request.buildHttpRequest();
+		httpRequest.setThrowExceptionOnExecuteError(false);
+		if (etag != null) {
+			httpRequest.getHeaders().setIfNoneMatch(etag);
+		}
+
+		HttpResponse response = httpRequest.execute();
+		if (etag != null && response.getStatusCode() == HTTP_NOT_MODIFIED) {
+			response.ignore();
+			return null;
+		}
+		if (!response.isSuccessStatusCode()) {
+			throw GoogleJsonResponseException.from(request.getClient().getJsonFactory(), response);
+		}
+		return response;
+	}
+
+	private synchronized <T> T parsed(Entry entry, Class<T> type, JsonFactory jsonFactory) throws IOException {
+		// entries loaded from disk are only parsed the first time they are used
+		if (!type.isInstance(entry.parsed)) {
+			entry.parsed = jsonFactory.fromString(entry.body, type);
+		}
+		return type.cast(entry.parsed);
+	}
+
+	private synchronized Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			File file = new File(dir, key);
+			if (file.exists()) {
+				try {
+					String contents = Files.toString(file, UTF_8);
+					int split = contents.indexOf('\n');
+					if (split > 0) {
+						entry = new Entry(contents.substring(0, split), contents.substring(split + 1), null);
+						entries.put(key, entry);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage(), e);
+				}
+			}
+		}
+		return entry;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		entries.put(key, entry);
+		// written beside the entry then renamed over it, so a crash part way
+		// through never leaves a truncated body under a valid ETag
+		File file = new File(dir, key);
+		File temp = new File(dir, key + TEMP_SUFFIX);
+		try {
+			Files.write(entry.etag + '\n' + entry.body, temp, UTF_8);
+			if (!temp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+			temp.delete();
+		}
+	}
+
+	private synchronized void remove(String key, Entry entry) {
+		// unless it has already been replaced
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+			new File(dir, key).delete();
+		}
+	}
+}
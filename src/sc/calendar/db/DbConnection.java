@@ -17,6 +17,7 @@
 package sc.calendar.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -24,8 +25,12 @@ import android.util.Log;
 
 class DbConnection extends SQLiteOpenHelper {
 
-	private static final int DATABASE_VERSION = 5;
-	private static final String DATABASE_NAME = "scalendar";
+	private static final int DATABASE_VERSION = 8;
+
+	// oldest schema that can be migrated in place, anything before it is
+	// rebuilt from scratch
+	private static final int FIRST_MIGRATABLE_VERSION = 5;
+	static final String DATABASE_NAME = "scalendar";
 	
 
 	static final String ID = "id";
@@ -39,6 +44,8 @@ class DbConnection extends SQLiteOpenHelper {
 	static final String EVENTS_END_NAME = "end";
 	static final String EVENTS_CLEARED_NAME = "cleared";
 	static final String EVENTS_NAME_NAME = "name";
+	// CalendarEvent.contentHash of the start, end and name
+	static final String EVENTS_HASH_NAME = "hash";
 	
 	static final String CALENDER_FK = "idCal";
 	private static final String EVENTS_TABLE_CREATE = "CREATE TABLE " + EVENTS_TABLE_NAME + " (" + 
@@ -47,11 +54,37 @@ class DbConnection extends SQLiteOpenHelper {
 			EVENTS_END_NAME + " INTEGER, "+
 			EVENTS_CLEARED_NAME + " NUMERIC, "+
 			EVENTS_NAME_NAME + " TEXT, "+
+			EVENTS_HASH_NAME + " INTEGER, "+
 			CALENDER_FK+ " TEXT, FOREIGN KEY ("+CALENDER_FK+") REFERENCES "+CALENDAR_TABLE_NAME+"( "+ID+" ));";
 
+
+	static final String SYNC_TABLE_NAME = "sync_state";
+	static final String SYNC_TOKEN_NAME = "sync_token";
+	static final String SYNC_ETAG_NAME = "etag";
+	static final String SYNC_LAST_POLL_NAME = "last_poll";
+	static final String SYNC_WATERMARK_NAME = "watermark";
+	static final String SYNC_EVENT_COUNT_NAME = "event_count";
+	private static final String SYNC_TABLE_CREATE = "CREATE TABLE " + SYNC_TABLE_NAME + " (" + 
+			CALENDER_FK + " TEXT PRIMARY KEY, " +
+			SYNC_TOKEN_NAME + " TEXT, " +
+			SYNC_ETAG_NAME + " TEXT, " +
+			SYNC_LAST_POLL_NAME + " INTEGER, " +
+			SYNC_WATERMARK_NAME + " INTEGER, " +
+			SYNC_EVENT_COUNT_NAME + " INTEGER, FOREIGN KEY ("+CALENDER_FK+") REFERENCES "+CALENDAR_TABLE_NAME+"( "+ID+" ));";
+
+	// events of a calendar in time order, used by the per calendar reads,
+	// counts and stale event deletes
+	private static final String EVENTS_CAL_START_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS events_cal_start ON " + EVENTS_TABLE_NAME + " (" + CALENDER_FK + ", " + EVENTS_START_NAME + ");";
+	// uncleared events in time order, used to find the events that are due
+	private static final String EVENTS_CLEARED_START_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS events_cleared_start ON " + EVENTS_TABLE_NAME + " (" + EVENTS_CLEARED_NAME + ", " + EVENTS_START_NAME + ");";
 	
+	private static final String ADD_EVENTS_HASH_COLUMN = "ALTER TABLE " + EVENTS_TABLE_NAME + " ADD COLUMN " + EVENTS_HASH_NAME + " INTEGER;";
+
+	private static final String ENABLE_WAL = "PRAGMA journal_mode=WAL";
+
 	private static final String REMOVE_EVENTS_TABLE = "DROP TABLE "+EVENTS_TABLE_NAME;
 	private static final String REMOVE_CALENDAR_TABLE = "DROP TABLE "+CALENDAR_TABLE_NAME;
+	private static final String REMOVE_SYNC_TABLE = "DROP TABLE IF EXISTS "+SYNC_TABLE_NAME;
 
 	public DbConnection(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -61,13 +94,73 @@ class DbConnection extends SQLiteOpenHelper {
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(CALENDAR_TABLE_CREATE);
 		db.execSQL(EVENTS_TABLE_CREATE);
+		db.execSQL(SYNC_TABLE_CREATE);
+		db.execSQL(EVENTS_CAL_START_INDEX_CREATE);
+		db.execSQL(EVENTS_CLEARED_START_INDEX_CREATE);
 	}
 
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			// lets the separate read connection work while a sync is
+			// writing. Older sqlite versions ignore this and keep their
+			// rollback journal.
+			Cursor cursor = db.rawQuery(ENABLE_WAL, null);
+			try {
+				cursor.moveToFirst();
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Steps the schema up one version at a time so existing events, and
+	 * their cleared flags, survive an upgrade.
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if (db.isReadOnly()) {
-			db = this.getWritableDatabase();
+		if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+			recreate(db);
+			return;
+		}
+
+		for (int version = oldVersion + 1; version <= newVersion; version++) {
+			migrateTo(db, version);
 		}
+	}
+
+	/**
+	 * Upgrades the schema from version - 1 to version. Each new schema
+	 * version needs a case here.
+	 */
+	private void migrateTo(SQLiteDatabase db, int version) {
+		switch (version) {
+		case 6:
+			db.execSQL(SYNC_TABLE_CREATE);
+			break;
+		case 7:
+			db.execSQL(EVENTS_CAL_START_INDEX_CREATE);
+			db.execSQL(EVENTS_CLEARED_START_INDEX_CREATE);
+			break;
+		case 8:
+			// existing rows are left without a hash and rewritten by the
+			// next sync
+			db.execSQL(ADD_EVENTS_HASH_COLUMN);
+			break;
+		default:
+			throw new IllegalStateException("No migration to database version " + version);
+		}
+	}
+
+	private void recreate(SQLiteDatabase db) {
+		try {
+			db.execSQL(REMOVE_SYNC_TABLE);
+		} catch (SQLiteException e) {
+			Log.e(this.getClass().getName(), e.getMessage(), e);
+		}
+
 		try {
 			db.execSQL(REMOVE_EVENTS_TABLE);
 		} catch (SQLiteException e) {
@@ -83,4 +176,4 @@ class DbConnection extends SQLiteOpenHelper {
 		onCreate(db);
 	}
 
-}
\ No newline at end of file
+}
@@ -16,22 +16,36 @@
 
 package sc.calendar.db;
 
-import java.util.Set;
-import java.util.SortedSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
-import sc.calendar.dataSource.AndroidCalendar;
+import sc.calendar.SCalConstants;
+import sc.calendar.dataSource.CalendarDelta;
 import sc.calendar.dataSource.CalendarEvent;
+import sc.calendar.dataSource.CalendarSyncState;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 public class DbInterface {
 
-	private static final String ADD_CAL = "INSERT INTO " + DbConnection.CALENDAR_TABLE_NAME + " ( " + DbConnection.ID + ") VALUES (?);";
+	private static final String ADD_CAL = "INSERT OR IGNORE INTO " + DbConnection.CALENDAR_TABLE_NAME + " ( " + DbConnection.ID + ") VALUES (?);";
+
+	// upserting looks up the stored content hashes of a page's events, then
+	// inserts the new ones and updates those whose hash differs, so only rows
+	// that change are written and the cleared flag of existing rows is left
+	// alone
+	private static final String SELECT_EVENT_HASHES = "SELECT " + DbConnection.ID + ", " + DbConnection.EVENTS_HASH_NAME + ", " + DbConnection.CALENDER_FK 
+															+ " FROM " + DbConnection.EVENTS_TABLE_NAME + " WHERE " + DbConnection.ID + " IN (";
+	// sqlite allows up to 999 arguments
+	private static final int MAX_HASH_QUERY_ARGS = 500;
 
 	private static final String ADD_EVENT = "INSERT INTO "  + DbConnection.EVENTS_TABLE_NAME + " ( " 
 															+ DbConnection.ID + ", " 
@@ -39,222 +53,411 @@ public class DbInterface {
 															+ DbConnection.EVENTS_END_NAME + ", " 
 															+ DbConnection.EVENTS_CLEARED_NAME + ", "
 															+ DbConnection.EVENTS_NAME_NAME + ", " 
+															+ DbConnection.EVENTS_HASH_NAME + ", " 
 															+ DbConnection.CALENDER_FK 
-															+ " ) VALUES (?,?,?,?,?,?);";
-	
-	private static final String UPDATE_EVENT = "UPDATE " + DbConnection.EVENTS_TABLE_NAME + " SET  " 
-																+ DbConnection.ID + " = ?, " 
+															+ " ) VALUES (?,?,?,0,?,?,?);";
+
+	private static final String UPDATE_EVENT_CONTENT = "UPDATE " + DbConnection.EVENTS_TABLE_NAME + " SET  " 
 																+ DbConnection.EVENTS_START_NAME + " = ?, "
 																+ DbConnection.EVENTS_END_NAME + " = ?, " 
-																+ DbConnection.EVENTS_CLEARED_NAME + " = ?, "
 																+ DbConnection.EVENTS_NAME_NAME + " = ?, " 
+																+ DbConnection.EVENTS_HASH_NAME + " = ?, " 
 																+ DbConnection.CALENDER_FK + " = ? "
-																+ " WHERE "+ DbConnection.ID+ "= ?";
-	
-	private static final String REMOVE_ALL_EVENTS = "DELETE FROM "+DbConnection.EVENTS_TABLE_NAME+" WHERE "+DbConnection.CALENDER_FK+ " = ? AND ("+DbConnection.EVENTS_CLEARED_NAME+" = 1 OR "+DbConnection.EVENTS_START_NAME+" > ?) ";
+																+ " WHERE "+ DbConnection.ID+ " = ?";
 
-	private static final String GET_EVENTS_FOR_CAL = "SELECT * FROM " + DbConnection.EVENTS_TABLE_NAME +" WHERE "+DbConnection.CALENDER_FK+" = ?";
+	private static final String ROWS_CHANGED = "SELECT changes()";
 	
+	// ids of the events currently on the server for the calendars having a
+	// full sync. Filled a page at a time and used to delete the rest once
+	// the last page is in.
+	private static final String LIVE_IDS_TABLE_NAME = "live_ids";
+	private static final String CREATE_LIVE_IDS = "CREATE TEMP TABLE IF NOT EXISTS " + LIVE_IDS_TABLE_NAME + " (" + DbConnection.CALENDER_FK + " TEXT, " + DbConnection.ID + " TEXT, PRIMARY KEY (" + DbConnection.CALENDER_FK + ", " + DbConnection.ID + "));";
+	private static final String CLEAR_LIVE_IDS = "DELETE FROM " + LIVE_IDS_TABLE_NAME + " WHERE " + DbConnection.CALENDER_FK + " = ?";
+	private static final String ADD_LIVE_ID = "INSERT OR IGNORE INTO " + LIVE_IDS_TABLE_NAME + " (" + DbConnection.CALENDER_FK + ", " + DbConnection.ID + ") VALUES (?,?);";
+
+	private static final String REMOVE_OLD_EVENTS = "DELETE FROM "+DbConnection.EVENTS_TABLE_NAME+" WHERE "+DbConnection.CALENDER_FK+ " = ?1 AND ("+DbConnection.EVENTS_CLEARED_NAME+" = 1 OR "+DbConnection.EVENTS_START_NAME+" > ?2) "
+																+ " AND " + DbConnection.ID + " NOT IN (SELECT " + DbConnection.ID + " FROM " + LIVE_IDS_TABLE_NAME + " WHERE " + DbConnection.CALENDER_FK + " = ?1)";
+
+	// cleared events that ended before the window polls fetch, which no sync
+	// will mention again
+	private static final String PRUNE_CLEARED_EVENTS = "DELETE FROM "+DbConnection.EVENTS_TABLE_NAME+" WHERE "+DbConnection.CALENDER_FK+ " = ? AND "+DbConnection.EVENTS_CLEARED_NAME+" = 1 AND "+DbConnection.EVENTS_END_NAME+" < ?";
+
+	private static final String REMOVE_EVENT = "DELETE FROM "+DbConnection.EVENTS_TABLE_NAME+" WHERE "+DbConnection.ID+" = ? AND "+DbConnection.CALENDER_FK+" = ?";
+
+	private static final String COUNT_EVENTS_FOR_CAL = "SELECT COUNT(*) FROM " + DbConnection.EVENTS_TABLE_NAME +" WHERE "+DbConnection.CALENDER_FK+" = ?";
+
+	private static final String SAVE_SYNC_STATE = "INSERT OR REPLACE INTO " + DbConnection.SYNC_TABLE_NAME + " ( " 
+															+ DbConnection.CALENDER_FK + ", " 
+															+ DbConnection.SYNC_TOKEN_NAME + ", "
+															+ DbConnection.SYNC_ETAG_NAME + ", " 
+															+ DbConnection.SYNC_LAST_POLL_NAME + ", "
+															+ DbConnection.SYNC_WATERMARK_NAME + ", " 
+															+ DbConnection.SYNC_EVENT_COUNT_NAME 
+															+ " ) VALUES (?,?,?,?,?,?);";
+
+	private static final String CLEAR_EVENT = "UPDATE " + DbConnection.EVENTS_TABLE_NAME + " SET " + DbConnection.EVENTS_CLEARED_NAME + " = 1 WHERE " + DbConnection.ID + " = ?";
+
+	// uncleared events that have already started, in display order. Served
+	// from the (cleared, start) index
+	private static final String GET_DUE_EVENTS = "SELECT * FROM " + DbConnection.EVENTS_TABLE_NAME + " WHERE " + DbConnection.EVENTS_CLEARED_NAME + " = 0 AND " 
+																+ DbConnection.EVENTS_START_NAME + " < ? ORDER BY " + DbConnection.EVENTS_START_NAME + ", " + DbConnection.ID + " LIMIT ?";
+
+	private static final String GET_SYNC_STATE = "SELECT * FROM " + DbConnection.SYNC_TABLE_NAME +" WHERE "+DbConnection.CALENDER_FK+" = ?";
+
+	private static DbInterface instance;
+
+	private final Context context;
 	private final DbConnection db;
 
-	public DbInterface(Context context) {
+	// all writes go through one connection, one at a time
+	private final Object writeLock = new Object();
+	private SQLiteDatabase writer;
+	private StatementCache statements;
+
+	// reads get their own connection, so with write ahead logging they are
+	// not held up by a sync transaction
+	private SQLiteDatabase reader;
+
+	private DbInterface(Context context) {
+		this.context = context;
 		db = new DbConnection(context);
 	}
 
-	public Set<AndroidCalendar> getCalenders() {
-		SQLiteDatabase con = db.getReadableDatabase();
-		Set<AndroidCalendar> out = Sets.newHashSet();
-		Cursor cursor = null;
-		try {
-			cursor = con.query(DbConnection.CALENDAR_TABLE_NAME, new String[] { DbConnection.ID }, null, null, null, null, null);
-			if (cursor.moveToFirst()) {
-				int idIndex = cursor.getColumnIndex(DbConnection.ID);
-				do {
-					String id = cursor.getString(idIndex);
-					SortedSet<CalendarEvent> events = getEvents(id);
-					out.add(new AndroidCalendar(id, events));
-				} while (cursor.moveToNext());
-			}
-			return out;
-		} finally {
-			if (cursor != null)
-				cursor.close();
-			con.close();
+	/**
+	 * Gets the one interface for the process. Its connections and write lock
+	 * are shared by everything that writes, and kept open until the process
+	 * dies.
+	 */
+	public static synchronized DbInterface getInstance(Context context) {
+		if (instance == null) {
+			instance = new DbInterface(context.getApplicationContext());
 		}
+		return instance;
 	}
 
-	public AndroidCalendar getCalender(String calId) {
+	private SQLiteDatabase writer() {
+		synchronized (writeLock) {
+			if (writer == null) {
+				// opening for write runs any create or upgrade
+				writer = db.getWritableDatabase();
+				writer.execSQL(CREATE_LIVE_IDS);
+				statements = new StatementCache(writer);
+			}
+			return writer;
+		}
+	}
 
-		SQLiteDatabase con = db.getReadableDatabase();
-		Cursor cursor = null;
-		try {
-			cursor = con.query(DbConnection.CALENDAR_TABLE_NAME, new String[] { DbConnection.ID }, DbConnection.ID + " = ?", new String[] { calId }, null, null,
-					null);
-			if (cursor.moveToFirst()) {
-				// cal does exist
-				int idIndex = cursor.getColumnIndex(DbConnection.ID);
-				String id = cursor.getString(idIndex);
-				SortedSet<CalendarEvent> events = getEvents(id);
-				return new AndroidCalendar(id, events);
+	private synchronized SQLiteDatabase reader() {
+		if (reader == null) {
+			SQLiteDatabase con = writer();
+			try {
+				reader = SQLiteDatabase.openDatabase(context.getDatabasePath(DbConnection.DATABASE_NAME).getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			} catch (SQLiteException e) {
+				Log.e(this.getClass().getName(), e.getMessage(), e);
+				reader = con;
 			}
-		} finally {
-			if (cursor != null)
-				cursor.close();
-			con.close();
 		}
-		return null;
+		return reader;
 	}
 
-	public SortedSet<CalendarEvent> getEvents(String calId) {
-		SQLiteDatabase con = db.getReadableDatabase();
+	/**
+	 * Gets the events that have started before now and not been cleared,
+	 * oldest first
+	 * @param limit the most events to return, or 0 for all of them
+	 */
+	public List<CalendarEvent> getDueEvents(long now, int limit) {
 		Cursor cursor = null;
 		try {
-			cursor = con.rawQuery(GET_EVENTS_FOR_CAL, new String[] { calId });
+			cursor = reader().rawQuery(GET_DUE_EVENTS, new String[] { Long.toString(now), Integer.toString(limit > 0 ? limit : -1) });
 
-			SortedSet<CalendarEvent> out = Sets.newTreeSet();
+			List<CalendarEvent> out = Lists.newArrayListWithCapacity(cursor.getCount());
 			if (cursor.moveToFirst()) {
 				int startIndex = cursor.getColumnIndex(DbConnection.EVENTS_START_NAME);
 				int endIndex = cursor.getColumnIndex(DbConnection.EVENTS_END_NAME);
 				int idIndex = cursor.getColumnIndex(DbConnection.ID);
-				int clearedIndex = cursor.getColumnIndex(DbConnection.EVENTS_CLEARED_NAME);
 				int nameIndex = cursor.getColumnIndex(DbConnection.EVENTS_NAME_NAME);
 				int calFkIndex = cursor.getColumnIndex(DbConnection.CALENDER_FK);
 
 				do {
-					CalendarEvent ce = new CalendarEvent(cursor.getLong(startIndex), cursor.getLong(endIndex), cursor.getString(nameIndex),
-							cursor.getString(idIndex), cursor.getLong(clearedIndex) != 0, cursor.getString(calFkIndex));
-					out.add(ce);
+					out.add(new CalendarEvent(cursor.getLong(startIndex), cursor.getLong(endIndex), cursor.getString(nameIndex),
+							cursor.getString(idIndex), false, cursor.getString(calFkIndex)));
 				} while (cursor.moveToNext());
-
 			}
 			return out;
 		} finally {
 			if (cursor != null)
 				cursor.close();
-			con.close();
 		}
 	}
 
-	public AndroidCalendar getOrCreateCalendar(String calId) {
-		AndroidCalendar cal = getCalender(calId);
-		if (cal==null) {
-			SQLiteDatabase con = db.getWritableDatabase();
+	// must hold the write lock
+	private void addCalendar(String calId) {
+		SQLiteStatement stmt = statements.get(ADD_CAL);
+		stmt.bindString(1, calId);
+		stmt.executeInsert();
+	}
+
+	// must hold the write lock
+	private void clearLiveIds(String calId) {
+		SQLiteStatement stmt = statements.get(CLEAR_LIVE_IDS);
+		stmt.bindString(1, calId);
+		stmt.execute();
+	}
+
+	// must hold the write lock
+	private void addLiveIds(String calId, Collection<CalendarEvent> events) {
+		SQLiteStatement addId = statements.get(ADD_LIVE_ID);
+		for (CalendarEvent ce : events) {
+			addId.bindString(1, calId);
+			addId.bindString(2, ce.getId());
+			addId.executeInsert();
+		}
+	}
+
+	/**
+	 * Deletes the stored events of the calendar that were not in any page
+	 * of its full sync. The live ids are in a temp table so the delete is
+	 * one fixed statement however big the calendar is.
+	 * @return how many events were deleted
+	 */
+	private int removeOldEvents(String calId) {
+		SQLiteStatement stmtE = statements.get(REMOVE_OLD_EVENTS);
+		stmtE.bindString(1, calId);
+		stmtE.bindLong(2, System.currentTimeMillis());
+		stmtE.execute();
+		int removed = (int) statements.get(ROWS_CHANGED).simpleQueryForLong();
+
+		clearLiveIds(calId);
+		return removed;
+	}
+
+	/**
+	 * Deletes the calendar's cleared events that ended before the poll
+	 * window. Full syncs are rare, so this runs at the end of every poll to
+	 * stop old events building up. Must hold the write lock.
+	 */
+	private void pruneClearedEvents(String calId) {
+		SQLiteStatement stmt = statements.get(PRUNE_CLEARED_EVENTS);
+		stmt.bindString(1, calId);
+		stmt.bindLong(2, System.currentTimeMillis() - SCalConstants.BUFFER_PERIOD_MS);
+		stmt.execute();
+	}
+
+	/**
+	 * Writes the events that are new or whose content hash has changed,
+	 * comparing against the stored hashes only. Must hold the write lock.
+	 * @return how many events were written
+	 */
+	private int upsertEvents(String calId, Collection<CalendarEvent> events) {
+		if (events.isEmpty())
+			return 0;
+
+		Map<String, Long> stored = getContentHashes(calId, events);
+		SQLiteStatement add = statements.get(ADD_EVENT);
+		SQLiteStatement update = statements.get(UPDATE_EVENT_CONTENT);
+		int written = 0;
+		for (CalendarEvent ce : events) {
+			long hash = ce.getContentHash();
+			if (!stored.containsKey(ce.getId())) {
+				add.bindString(1, ce.getId());
+				add.bindLong(2, ce.getStart());
+				add.bindLong(3, ce.getEnd());
+				bindNullable(add, 4, ce.getSummary());
+				add.bindLong(5, hash);
+				add.bindString(6, calId);
+				add.executeInsert();
+			} else {
+				Long old = stored.get(ce.getId());
+				if (old != null && old.longValue() == hash)
+					continue;
+
+				update.bindLong(1, ce.getStart());
+				update.bindLong(2, ce.getEnd());
+				bindNullable(update, 3, ce.getSummary());
+				update.bindLong(4, hash);
+				update.bindString(5, calId);
+				update.bindString(6, ce.getId());
+				update.execute();
+			}
+			// in case the id comes up again in the same page
+			stored.put(ce.getId(), hash);
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * Gets the stored content hash of each of the events that is already in
+	 * the db. The hash is null for rows that must be rewritten whatever the
+	 * new hash is: those stored before hashes were kept, or under another
+	 * calendar. Must hold the write lock.
+	 */
+	private Map<String, Long> getContentHashes(String calId, Collection<CalendarEvent> events) {
+		List<String> ids = Lists.newArrayListWithCapacity(events.size());
+		for (CalendarEvent ce : events) {
+			ids.add(ce.getId());
+		}
+
+		Map<String, Long> hashes = Maps.newHashMap();
+		for (int from = 0; from < ids.size(); from += MAX_HASH_QUERY_ARGS) {
+			List<String> chunk = ids.subList(from, Math.min(from + MAX_HASH_QUERY_ARGS, ids.size()));
+			StringBuilder query = new StringBuilder(SELECT_EVENT_HASHES);
+			for (int i = 0; i < chunk.size(); i++) {
+				query.append(i == 0 ? "?" : ",?");
+			}
+			query.append(')');
+
+			Cursor cursor = null;
 			try {
-				SQLiteStatement stmt = con.compileStatement(ADD_CAL);
-				try {
-					stmt.bindString(1, calId);
-					stmt.executeInsert();
-				} finally {
-					stmt.close();
+				cursor = writer.rawQuery(query.toString(), chunk.toArray(new String[chunk.size()]));
+				while (cursor.moveToNext()) {
+					Long hash = null;
+					if (!cursor.isNull(1) && calId.equals(cursor.getString(2)))
+						hash = Long.valueOf(cursor.getLong(1));
+					hashes.put(cursor.getString(0), hash);
 				}
-			} catch (Exception e) {
-				Log.e(this.getClass().getName(), e.getMessage(), e);
 			} finally {
-				con.close();
+				if (cursor != null)
+					cursor.close();
 			}
-			return new AndroidCalendar(calId);
-		}
-		else {
-			return cal;
 		}
+		return hashes;
 	}
 
-	private void removeOldEvents(AndroidCalendar cal) {
-		SQLiteDatabase con = db.getWritableDatabase();
+	/**
+	 * Applies one page of changes from a poll to the db, in a single
+	 * transaction. Pages of an incremental sync only touch the events they
+	 * name. Pages of a full sync are collected until the last one, which
+	 * then removes any stored events that were not in them.
+	 * 
+	 * The last page also records the new sync state, if given, in the same
+	 * transaction so the state never gets ahead of the events.
+	 * @return how many events were added, changed or removed
+	 */
+	public int applyDelta(CalendarDelta delta, CalendarSyncState state) {
+		String calId = delta.getCalId();
+		int changes = 0;
+		synchronized (writeLock) {
+			SQLiteDatabase con = writer();
+			con.beginTransaction();
+			try {
+				if (delta.isFirst()) {
+					addCalendar(calId);
+					if (delta.isFull())
+						clearLiveIds(calId);
+				}
 
-		try {
-			// Unfortunately will need to build this one
-			String stmt = REMOVE_ALL_EVENTS;
-
-			if (cal.getEvents().size() > 0) {
-				stmt += " AND " + DbConnection.ID + " NOT IN ";
-
-				String in = null;
-				for (CalendarEvent ce : cal.getEvents()) {
-					if (in == null) {
-						in = "('" + ce.getId() + "'";
-					} else {
-						in += ",'" + ce.getId() + "'";
+				if (delta.isAborted()) {
+					// keep what has been written, the rest comes next poll
+					if (delta.isFull())
+						clearLiveIds(calId);
+				} else {
+					SQLiteStatement remove = statements.get(REMOVE_EVENT);
+					for (String id : delta.getRemoved()) {
+						remove.bindString(1, id);
+						remove.bindString(2, calId);
+						remove.execute();
+						changes += (int) statements.get(ROWS_CHANGED).simpleQueryForLong();
 					}
-				}
-				in += ")";
 
-				stmt += in;
-			}
+					changes += upsertEvents(calId, delta.getChanged());
 
-			SQLiteStatement stmtE = con.compileStatement(stmt);
-			try {
-				stmtE.bindString(1, cal.getId());
-				stmtE.bindLong(2, System.currentTimeMillis());
-				stmtE.execute();
+					if (delta.isFull())
+						addLiveIds(calId, delta.getChanged());
+
+					if (delta.isLast()) {
+						if (delta.isFull())
+							changes += removeOldEvents(calId);
+						pruneClearedEvents(calId);
+
+						if (state != null) {
+							state.setEventCount(countEvents(calId));
+							saveSyncStateWithCon(state);
+						}
+					}
+				}
+				con.setTransactionSuccessful();
 			} finally {
-				stmtE.close();
+				con.endTransaction();
 			}
-		} finally {
-			con.close();
 		}
+		return changes;
 	}
-	
-	private void addEvent(CalendarEvent ce, String calId, SQLiteDatabase con) {
-		SQLiteStatement stmtE = con.compileStatement(ADD_EVENT);
-		try {
-			stmtE.bindString(1, ce.getId());
-			stmtE.bindLong(2, ce.getStart().getTime());
-			stmtE.bindLong(3, ce.getEnd().getTime());
-			stmtE.bindLong(4, ce.getCleared() ? 1 : 0);
-			stmtE.bindString(5, ce.getSummary());
-			stmtE.bindString(6, calId);
-			stmtE.executeInsert();
-		} finally {
-			stmtE.close();
+
+	/**
+	 * Marks the events as cleared, in a single transaction. Only the cleared
+	 * flag is written so a sync that has happened since can not be undone.
+	 */
+	public void clearEvents(Collection<String> ids) {
+		synchronized (writeLock) {
+			SQLiteDatabase con = writer();
+			con.beginTransaction();
+			try {
+				SQLiteStatement stmt = statements.get(CLEAR_EVENT);
+				for (String id : ids) {
+					stmt.bindString(1, id);
+					stmt.execute();
+				}
+				con.setTransactionSuccessful();
+			} finally {
+				con.endTransaction();
+			}
 		}
 	}
 
-	public void syncDb(AndroidCalendar cal) {
-
-		// get old events
-		AndroidCalendar oldCal = getOrCreateCalendar(cal.getId());
-
-		// remove old events from db
-		removeOldEvents(cal);
+	// must hold the write lock
+	private int countEvents(String calId) {
+		SQLiteStatement stmt = statements.get(COUNT_EVENTS_FOR_CAL);
+		stmt.bindString(1, calId);
+		return (int) stmt.simpleQueryForLong();
+	}
 
-		// add new events
-		SQLiteDatabase con = db.getWritableDatabase();
+	/**
+	 * Gets how far the calendar has been synced, or null if it never has been
+	 */
+	public CalendarSyncState getSyncState(String calId) {
+		Cursor cursor = null;
 		try {
-			// merge old events into the new
-			for (CalendarEvent ce : cal.getEvents()) {
-				CalendarEvent oldEvent = oldCal.getEventsMap().get(ce.getId());
-				if (oldEvent != null) {
-					// already exists. Merge the events and update the record if
-					// something has changed
-					if (ce.mergeEvents(oldEvent)) {
-						updateEventWithCon(ce, con);
-					}
-				} else {
-					// new event, add it
-					addEvent(ce, cal.getId(), con);
-				}
+			cursor = reader().rawQuery(GET_SYNC_STATE, new String[] { calId });
+			if (cursor.moveToFirst()) {
+				return new CalendarSyncState(calId,
+						cursor.getString(cursor.getColumnIndex(DbConnection.SYNC_TOKEN_NAME)),
+						cursor.getString(cursor.getColumnIndex(DbConnection.SYNC_ETAG_NAME)),
+						cursor.getLong(cursor.getColumnIndex(DbConnection.SYNC_LAST_POLL_NAME)),
+						cursor.getLong(cursor.getColumnIndex(DbConnection.SYNC_WATERMARK_NAME)),
+						cursor.getInt(cursor.getColumnIndex(DbConnection.SYNC_EVENT_COUNT_NAME)));
 			}
-
+			return null;
 		} finally {
-			con.close();
+			if (cursor != null)
+				cursor.close();
 		}
-
 	}
 
-	private void updateEventWithCon(CalendarEvent ce, SQLiteDatabase con) {
-		con.execSQL(
-				UPDATE_EVENT,
-				new Object[] { ce.getId(), ce.getStart().getTime(), ce.getEnd().getTime(), ce.getCleared() ? 1 : 0, ce.getSummary(), ce.getCalId(), ce.getId() });
+	public void saveSyncState(CalendarSyncState state) {
+		synchronized (writeLock) {
+			writer();
+			saveSyncStateWithCon(state);
+		}
+	}
 
+	// must hold the write lock
+	private void saveSyncStateWithCon(CalendarSyncState state) {
+		SQLiteStatement stmt = statements.get(SAVE_SYNC_STATE);
+		stmt.bindString(1, state.getCalId());
+		bindNullable(stmt, 2, state.getSyncToken());
+		bindNullable(stmt, 3, state.getEtag());
+		stmt.bindLong(4, state.getLastPoll());
+		stmt.bindLong(5, state.getWatermark());
+		stmt.bindLong(6, state.getEventCount());
+		stmt.execute();
 	}
 
-	public void updateEvent(CalendarEvent ce) {
-		SQLiteDatabase con = db.getWritableDatabase();
-		try {
-			updateEventWithCon(ce, con);
-		} finally {
-			con.close();
+	private static void bindNullable(SQLiteStatement stmt, int index, String value) {
+		if (value == null) {
+			stmt.bindNull(index);
+		} else {
+			stmt.bindString(index, value);
 		}
 	}
 
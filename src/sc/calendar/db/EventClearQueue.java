@@ -0,0 +1,123 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.db;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import sc.calendar.dataSource.CalendarEvent;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Write behind queue for clearing events. The event is marked cleared
+ * straight away and the db write happens later on a background thread,
+ * batched with any other clears made in the meantime.
+ * 
+ * {@link #flush()} must be called when the app may be killed (i.e. onPause)
+ * so queued clears are not lost.
+ */
+public class EventClearQueue {
+
+	// how long to wait for more clears before writing them
+	private static final long BATCH_DELAY_MS = 500;
+
+	// how long to wait before trying a failed write again
+	private static final long RETRY_DELAY_MS = 5000;
+
+	private final DbInterface db;
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+	// ids waiting to be written, guarded by this
+	private final Set<String> pending = Sets.newLinkedHashSet();
+
+	// held for the whole of a drain so flush only returns once the write is done
+	private final Object drainLock = new Object();
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	public EventClearQueue(DbInterface db) {
+		this.db = db;
+	}
+
+	public void clear(CalendarEvent ce) {
+		ce.setCleared(true);
+
+		boolean schedule;
+		synchronized (this) {
+			schedule = pending.isEmpty();
+			pending.add(ce.getId());
+		}
+		if (schedule) {
+			writer.schedule(drainTask, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes any queued clears on the calling thread
+	 */
+	public void flush() {
+		drain();
+	}
+
+	/**
+	 * Flushes the queue and stops the background writer
+	 */
+	public void shutdown() {
+		writer.shutdown();
+		flush();
+	}
+
+	private void drain() {
+		synchronized (drainLock) {
+			List<String> ids;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				ids = Lists.newArrayList(pending);
+				pending.clear();
+			}
+
+			try {
+				db.clearEvents(ids);
+			} catch (SQLException e) {
+				Log.e(this.getClass().getName(), e.getMessage(), e);
+				// put them back to be written with the next batch
+				synchronized (this) {
+					pending.addAll(ids);
+				}
+				try {
+					writer.schedule(drainTask, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e1) {
+					// shut down, they stay queued for any later flush
+					Log.e(this.getClass().getName(), e1.getMessage(), e1);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps the most recently used compiled statements of a connection so they
+ * are not recompiled on every call. Statements are shared, so callers must
+ * hold the connection's write lock while binding and executing them.
+ */
+class StatementCache {
+
+	private static final int MAX_STATEMENTS = 16;
+
+	private final SQLiteDatabase con;
+
+	private final Map<String, SQLiteStatement> statements = new LinkedHashMap<String, SQLiteStatement>(MAX_STATEMENTS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+			if (size() > MAX_STATEMENTS) {
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	StatementCache(SQLiteDatabase con) {
+		this.con = con;
+	}
+
+	synchronized SQLiteStatement get(String sql) {
+		SQLiteStatement stmt = statements.get(sql);
+		if (stmt == null) {
+			stmt = con.compileStatement(sql);
+			statements.put(sql, stmt);
+		}
+		stmt.clearBindings();
+		return stmt;
+	}
+}
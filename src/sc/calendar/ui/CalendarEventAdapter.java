@@ -16,12 +16,12 @@
 
 package sc.calendar.ui;
 
-import java.util.Collection;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 
 import sc.calendar.R;
 import sc.calendar.dataSource.CalendarEvent;
-import sc.calendar.db.DbInterface;
+import sc.calendar.db.EventClearQueue;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -31,73 +31,104 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.TextView;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
 
 public class CalendarEventAdapter extends ArrayAdapter<CalendarEvent> {
 
-	private final Set<CalendarEvent> items;
-	private final Context context;
-	private final DbInterface db;
+	// shared with ArrayAdapter and kept sorted, so positions map straight
+	// onto events
+	private final List<CalendarEvent> items;
+	private final LayoutInflater inflater;
+	private final EventClearQueue clearQueue;
+
+	// one listener for every row, the event to clear is the button's tag
+	private final OnClickListener clearListener = new OnClickListener() {
+		@Override
+		public void onClick(View v) {
+			CalendarEventAdapter.this.remove((CalendarEvent) v.getTag());
+		}
+	};
 
 	public CalendarEventAdapter(Context context,
-			int textViewResourceId, DbInterface db) {
-		super(context, textViewResourceId);
-		this.items = Sets.newTreeSet();
-		this.context = context;
-		this.db = db;
+			int textViewResourceId, EventClearQueue clearQueue) {
+		this(context, textViewResourceId, clearQueue, Lists.<CalendarEvent> newArrayList());
+	}
+
+	private CalendarEventAdapter(Context context,
+			int textViewResourceId, EventClearQueue clearQueue, List<CalendarEvent> items) {
+		super(context, textViewResourceId, items);
+		this.items = items;
+		this.inflater = (LayoutInflater) context
+				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		this.clearQueue = clearQueue;
 	}
 	
 	@Override
 	public void add(CalendarEvent object) {
-		super.add(object);
-		items.add(object);
+		int index = Collections.binarySearch(items, object);
+		if (index < 0) {
+			super.insert(object, -index - 1);
+		}
 	}
 	
-	public void addAll(Collection<CalendarEvent> collection) {
-		for(CalendarEvent ce : collection) {
-			super.add(ce);
+	/**
+	 * Applies a diff to the list with a single change notification. This
+	 * should be called from the GUI thread.
+	 */
+	public void apply(EventListDiff diff) {
+		if (diff.isEmpty())
+			return;
+
+		setNotifyOnChange(false);
+		for (CalendarEvent ce : diff.getRemoved()) {
+			super.remove(ce);
+		}
+		for (CalendarEvent ce : diff.getInserted()) {
+			add(ce);
 		}
-		items.addAll(collection);
+		notifyDataSetChanged();
 	}
 	
 	@Override
 	public void remove(CalendarEvent object) {
 		super.remove(object);
-		items.remove(object);
-		object.setCleared(true);
-		db.updateEvent(object);
-		
+		clearQueue.clear(object);
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 
 		View v = convertView;
+		ViewHolder holder;
 		if (v == null) {
-			LayoutInflater vi = (LayoutInflater) context
-					.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-			v = vi.inflate(R.layout.list_item, null);
+			v = inflater.inflate(R.layout.list_item, null);
+			holder = new ViewHolder(v);
+			holder.clear.setOnClickListener(clearListener);
+			v.setTag(holder);
+		} else {
+			holder = (ViewHolder) v.getTag();
 		}
-		final CalendarEvent ce = (CalendarEvent) items.toArray()[position];
-		if (ce != null) {
-			TextView time = (TextView) v.findViewById(R.id.eventTime);
-			TextView title = (TextView) v.findViewById(R.id.eventTitle);
-			Button clear = (Button) v.findViewById(R.id.buttonClear);
-
-			if (time != null) {
-				time.setText(ce.getFormattedStartTime());
-			}
-			if (title != null) {
-				title.setText(ce.getTitle());
-			}
-			
-			clear.setOnClickListener(new OnClickListener() {
-				@Override
-				public void onClick(View v) {
-					CalendarEventAdapter.this.remove(ce);
-				}
-			});
+
+		final CalendarEvent ce = items.get(position);
+		if (holder.time != null) {
+			holder.time.setText(ce.getFormattedStartTime());
+		}
+		if (holder.title != null) {
+			holder.title.setText(ce.getTitle());
 		}
+		holder.clear.setTag(ce);
 		return v;
 	}
-}
\ No newline at end of file
+
+	private static class ViewHolder {
+		final TextView time;
+		final TextView title;
+		final Button clear;
+
+		ViewHolder(View v) {
+			time = (TextView) v.findViewById(R.id.eventTime);
+			title = (TextView) v.findViewById(R.id.eventTitle);
+			clear = (Button) v.findViewById(R.id.buttonClear);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/* 
+   Copyright 2012 John Oliver
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package sc.calendar.ui;
+
+import java.util.List;
+
+import sc.calendar.dataSource.CalendarEvent;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The removals and inserts that turn one sorted event list into another.
+ * An event that has moved or changed shows up as both. Cheap enough to
+ * compute off the GUI thread and apply in one go with
+ * {@link CalendarEventAdapter#apply(EventListDiff)}.
+ */
+public class EventListDiff {
+	private final List<CalendarEvent> removed = Lists.newArrayList();
+	private final List<CalendarEvent> inserted = Lists.newArrayList();
+
+	/**
+	 * Diffs two lists, both sorted in CalendarEvent order, in a single merge
+	 * pass
+	 */
+	public static EventListDiff between(List<CalendarEvent> oldList, List<CalendarEvent> newList) {
+		EventListDiff diff = new EventListDiff();
+		int o = 0;
+		int n = 0;
+		while (o < oldList.size() && n < newList.size()) {
+			CalendarEvent oldEvent = oldList.get(o);
+			CalendarEvent newEvent = newList.get(n);
+			int cmp = oldEvent.compareTo(newEvent);
+			if (cmp < 0) {
+				diff.removed.add(oldEvent);
+				o++;
+			} else if (cmp > 0) {
+				diff.inserted.add(newEvent);
+				n++;
+			} else {
+				// same place in the list, but the title may have changed
+				if (!oldEvent.equals(newEvent)) {
+					diff.removed.add(oldEvent);
+					diff.inserted.add(newEvent);
+				}
+				o++;
+				n++;
+			}
+		}
+		for (; o < oldList.size(); o++) {
+			diff.removed.add(oldList.get(o));
+		}
+		for (; n < newList.size(); n++) {
+			diff.inserted.add(newList.get(n));
+		}
+		return diff;
+	}
+
+	public List<CalendarEvent> getRemoved() {
+		return removed;
+	}
+
+	public List<CalendarEvent> getInserted() {
+		return inserted;
+	}
+
+	public boolean isEmpty() {
+		return removed.isEmpty() && inserted.isEmpty();
+	}
+}